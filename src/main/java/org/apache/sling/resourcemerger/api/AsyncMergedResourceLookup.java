@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.api;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+
+/**
+ * The <code>AsyncMergedResourceLookup</code> service looks up merged
+ * resources on an executor instead of the calling thread, so that many
+ * lookups can be fanned out concurrently. The lookups apply the same hiding
+ * and ordering rules as the merged resource provider.
+ * <p>
+ * Resource resolvers are not thread-safe: each lookup running concurrently
+ * needs its own resolver, e.g. obtained with
+ * {@link ResourceResolver#clone(java.util.Map)}. The caller owns that
+ * resolver: it must not use it until the returned future is done, must keep
+ * it open as long as it uses the returned resources, which read their
+ * properties and children through it, and must close it afterwards.
+ * <p>
+ * Lookups which are still pending when the service goes away are cancelled.
+ */
+public interface AsyncMergedResourceLookup {
+
+    /**
+     * Service property to set to <code>true</code> on an
+     * {@link java.util.concurrent.ExecutorService} service, e.g. one starting
+     * a virtual thread per task, to run the lookups on it. Without such a
+     * service, lookups run on a thread pool of the resource merger.
+     */
+    String PROPERTY_EXECUTOR = "sling.resourcemerger.executor";
+
+    /**
+     * Gets a merged resource asynchronously.
+     *
+     * @param resolver Resource resolver used by this lookup only
+     * @param path     Absolute path of the merged resource
+     * @return Future merged resource, or future of <code>null</code> if it
+     *         does not exist in any of the search paths
+     * @throws IllegalStateException if the service is not available anymore
+     */
+    Future<Resource> getResourceAsync(ResourceResolver resolver, String path);
+
+    /**
+     * Lists the children of a merged resource asynchronously. The children
+     * are fully merged, keeping the hiding and ordering rules, before the
+     * returned future completes.
+     *
+     * @param resource Parent merged resource, read through a resolver used by
+     *                 this lookup only
+     * @return Future list of children, or future of <code>null</code> if the
+     *         resource is not a merged resource
+     * @throws IllegalStateException if the service is not available anymore
+     */
+    Future<List<Resource>> listChildrenAsync(Resource resource);
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.api;
+
+import java.util.Iterator;
+import java.util.Set;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+
+/**
+ * The <code>MergedResourceIndex</code> service finds merged resources by the
+ * value of a merged property without crawling the merged tree. It is only
+ * available when merged properties are configured to be indexed.
+ * <p>
+ * The index is built in the background and then follows the changes of the
+ * merged resources, so it may lag behind them. Once the service goes away,
+ * lookups on a reference kept to it fail with an
+ * {@link IllegalStateException}.
+ */
+public interface MergedResourceIndex {
+
+    /**
+     * Gets the names of the indexed properties
+     *
+     * @return Indexed property names
+     */
+    Set<String> getPropertyNames();
+
+    /**
+     * Checks whether the whole merged tree has been indexed. Until then,
+     * lookups fail rather than returning partial results.
+     *
+     * @return <code>true</code> if lookups are available
+     */
+    boolean isReady();
+
+    /**
+     * Gets the paths of the merged resources having the given value for the
+     * given property. Multi-valued properties match if any of their values
+     * is equal to the given one.
+     *
+     * @param propertyName Name of an indexed property
+     * @param value        Property value
+     * @return Set of merged resource paths, empty if none matches
+     * @throws IllegalArgumentException if the property is not indexed
+     * @throws IllegalStateException    if the index is not ready yet, or not
+     *                                  available anymore
+     */
+    Set<String> findPaths(String propertyName, Object value);
+
+    /**
+     * Gets the merged resources having the given value for the given
+     * property. Resources which have been hidden or don't hold the value
+     * anymore since they were indexed are skipped; resources which got the
+     * value since the last index update are only returned once the index has
+     * caught up.
+     *
+     * @param resolver     Resource resolver reading the merged resources
+     * @param propertyName Name of an indexed property
+     * @param value        Property value
+     * @return Iterator over the matching merged resources
+     * @throws IllegalArgumentException if the property is not indexed
+     * @throws IllegalStateException    if the index is not ready yet, or not
+     *                                  available anymore
+     */
+    Iterator<Resource> findResources(ResourceResolver resolver, String propertyName, Object value);
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+
+/**
+ * The <code>MergedResourceBrowser</code> gets visible merged resources by
+ * browsing the merged tree from the merge root path, like
+ * {@link MergedResourceProvider#listChildren(Resource)} exposes it. Unlike
+ * {@link MergedResourceProvider#getResource(ResourceResolver, String)}, a
+ * resource is only found if none of its ancestors hides it.
+ * <p>
+ * The children of each browsed resource are merged once and kept, so that
+ * resources sharing ancestors are found without merging these ancestors
+ * again. A browser is meant for a single series of lookups with one
+ * resolver: it does not see the changes made after it listed a resource.
+ */
+class MergedResourceBrowser {
+
+    private final MergedResourceProvider provider;
+
+    private final ResourceResolver resolver;
+
+    private final String mergeRootPath;
+
+    /**
+     * Merged path to the children of that merged resource, by name
+     */
+    private final Map<String, Map<String, Resource>> children = new HashMap<String, Map<String, Resource>>();
+
+    private Resource root;
+
+    /**
+     * Constructor
+     *
+     * @param provider      Merged resource provider
+     * @param resolver      Resource resolver
+     * @param mergeRootPath Merge root path
+     */
+    MergedResourceBrowser(MergedResourceProvider provider, ResourceResolver resolver, String mergeRootPath) {
+        this.provider = provider;
+        this.resolver = resolver;
+        this.mergeRootPath = mergeRootPath;
+    }
+
+    /**
+     * Gets a visible merged resource
+     *
+     * @param path Absolute path of the merged resource
+     * @return Merged resource, or <code>null</code> if it is not visible
+     */
+    Resource getResource(String path) {
+        if (!path.equals(mergeRootPath) && !path.startsWith(mergeRootPath + "/")) {
+            return null;
+        }
+        if (root == null) {
+            root = provider.getResource(resolver, mergeRootPath);
+        }
+        Resource resource = root;
+        for (String name : path.substring(mergeRootPath.length()).split("/")) {
+            if (resource == null) {
+                break;
+            }
+            if (name.length() > 0) {
+                resource = getChildren(resource).get(name);
+            }
+        }
+        return resource;
+    }
+
+    private Map<String, Resource> getChildren(Resource resource) {
+        Map<String, Resource> resourceChildren = children.get(resource.getPath());
+        if (resourceChildren == null) {
+            resourceChildren = new LinkedHashMap<String, Resource>();
+            Iterator<Resource> it = provider.listChildren(resource);
+            while (it != null && it.hasNext()) {
+                Resource child = it.next();
+                resourceChildren.put(child.getName(), child);
+            }
+            children.put(resource.getPath(), resourceChildren);
+        }
+        return resourceChildren;
+    }
+
+}
@@ -0,0 +1,321 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.resourcemerger.api.MergedResourceIndex;
+
+/**
+ * The <code>MergedResourceIndexImpl</code> is an in-memory inverted index mapping
+ * the values of a configured set of merged properties to the paths of the
+ * {@link MergedResource}s holding them.
+ * <p>
+ * The index is filled by walking the merged tree through a
+ * {@link MergedResourceProvider}, so that it sees exactly what
+ * {@link MergedResourceProvider#listChildren(Resource)} and
+ * {@link MergedValueMap} expose. Hiding properties such as
+ * {@link MergedResourceConstants#PN_HIDE_PROPERTIES} are not part of merged
+ * value maps: when indexed, their values are collected from every mapped
+ * resource instead. {@link MergedResourceConstants#PN_HIDE_RESOURCE} is not
+ * one of them: a resource holding it is never merged, so indexing it matches
+ * nothing.
+ */
+public class MergedResourceIndexImpl implements MergedResourceIndex {
+
+    /**
+     * Properties which are read from the mapped resources
+     */
+    private static final Set<String> LAYER_PROPERTIES = new HashSet<String>();
+
+    static {
+        LAYER_PROPERTIES.add(MergedResourceConstants.PN_HIDE_PROPERTIES);
+        LAYER_PROPERTIES.add(MergedResourceConstants.PN_HIDE_CHILDREN);
+        LAYER_PROPERTIES.add(MergedResourceConstants.PN_ORDER_BEFORE);
+    }
+
+    private final String mergeRootPath;
+
+    private final Set<String> propertyNames;
+
+    /**
+     * Property name to value to merged paths
+     */
+    private final Map<String, Map<Object, Set<String>>> index = new HashMap<String, Map<Object, Set<String>>>();
+
+    /**
+     * Merged path to indexed property values, sorted so that the outdated
+     * entries of a subtree can be found without going through all of them
+     */
+    private final SortedMap<String, Map<String, Set<Object>>> entries = new TreeMap<String, Map<String, Set<Object>>>();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Whether the whole merged tree has been indexed once
+     */
+    private volatile boolean ready;
+
+    private volatile boolean closed;
+
+    /**
+     * Constructor
+     *
+     * @param mergeRootPath Merge root path
+     * @param propertyNames Names of the properties to index
+     */
+    public MergedResourceIndexImpl(String mergeRootPath, String[] propertyNames) {
+        this.mergeRootPath = mergeRootPath;
+        this.propertyNames = new LinkedHashSet<String>(Arrays.asList(propertyNames));
+        for (String propertyName : this.propertyNames) {
+            index.put(propertyName, new HashMap<Object, Set<String>>());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Set<String> getPropertyNames() {
+        return Collections.unmodifiableSet(propertyNames);
+    }
+
+    /**
+     * Checks whether the whole merged tree has been indexed, i.e. whether
+     * {@link #update(MergedResourceProvider, ResourceResolver, String)} has
+     * completed once for the merge root, and the index is not closed.
+     *
+     * @return <code>true</code> if lookups are available
+     */
+    public boolean isReady() {
+        return ready && !closed;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Set<String> findPaths(String propertyName, Object value) {
+        if (!propertyNames.contains(propertyName)) {
+            throw new IllegalArgumentException("Property " + propertyName + " is not indexed");
+        }
+        if (closed) {
+            throw new IllegalStateException("Merged resource index is not available anymore");
+        }
+        if (!ready) {
+            throw new IllegalStateException("Merged resource index is not ready yet");
+        }
+        lock.readLock().lock();
+        try {
+            Set<String> paths = index.get(propertyName).get(value);
+            return paths != null ? new LinkedHashSet<String>(paths) : Collections.<String>emptySet();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each indexed path is resolved by browsing the merged tree, the
+     * ancestors shared by several hits being merged once per call.
+     */
+    public Iterator<Resource> findResources(ResourceResolver resolver, String propertyName, Object value) {
+        List<Resource> resources = new ArrayList<Resource>();
+        MergedResourceBrowser browser = new MergedResourceBrowser(new MergedResourceProvider(mergeRootPath), resolver, mergeRootPath);
+        for (String path : findPaths(propertyName, value)) {
+            Resource resource = browser.getResource(path);
+            if (resource != null && getValues(resource, propertyName).contains(value)) {
+                resources.add(resource);
+            }
+        }
+        return resources.iterator();
+    }
+
+    /**
+     * Closes the index: its entries are dropped, further updates are ignored
+     * and lookups fail from now on.
+     */
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            closed = true;
+            entries.clear();
+            for (Map<Object, Set<String>> valueIndex : index.values()) {
+                valueIndex.clear();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Indexes the merged resource at the given relative path and all its
+     * merged descendants, replacing whatever was indexed for that subtree.
+     *
+     * @param provider     Merged resource provider
+     * @param resolver     Resource resolver used to read the merged tree
+     * @param relativePath Path of the subtree relative to the merge root path
+     */
+    public void update(MergedResourceProvider provider, ResourceResolver resolver, String relativePath) {
+        String rootPath = ResourceUtil.normalize(mergeRootPath + "/" + relativePath);
+        Map<String, Map<String, Set<Object>>> subtreeEntries = new LinkedHashMap<String, Map<String, Set<Object>>>();
+
+        // Walk the merged tree first, so that readers are only blocked while swapping entries
+        Resource resource = new MergedResourceBrowser(provider, resolver, mergeRootPath).getResource(rootPath);
+        if (resource != null) {
+            collect(provider, resource, subtreeEntries);
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+
+            // Remove outdated entries of the subtree
+            removeEntry(rootPath, entries.remove(rootPath));
+            String descendantsPrefix = rootPath.endsWith("/") ? rootPath : rootPath + "/";
+            SortedMap<String, Map<String, Set<Object>>> descendants = entries.subMap(descendantsPrefix, descendantsPrefix + '\uffff');
+            for (Map.Entry<String, Map<String, Set<Object>>> entry : descendants.entrySet()) {
+                removeEntry(entry.getKey(), entry.getValue());
+            }
+            descendants.clear();
+
+            // Add current entries of the subtree
+            for (Map.Entry<String, Map<String, Set<Object>>> entry : subtreeEntries.entrySet()) {
+                for (Map.Entry<String, Set<Object>> values : entry.getValue().entrySet()) {
+                    Map<Object, Set<String>> valueIndex = index.get(values.getKey());
+                    for (Object value : values.getValue()) {
+                        Set<String> paths = valueIndex.get(value);
+                        if (paths == null) {
+                            paths = new LinkedHashSet<String>();
+                            valueIndex.put(value, paths);
+                        }
+                        paths.add(entry.getKey());
+                    }
+                }
+                entries.put(entry.getKey(), entry.getValue());
+            }
+            if (relativePath.length() == 0) {
+                ready = true;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Collects the indexed values of a merged resource and its descendants
+     *
+     * @param provider Merged resource provider
+     * @param resource Merged resource
+     * @param result   Map to which the indexed values are added, by path
+     */
+    private void collect(MergedResourceProvider provider, Resource resource, Map<String, Map<String, Set<Object>>> result) {
+        Map<String, Set<Object>> values = new HashMap<String, Set<Object>>();
+        for (String propertyName : propertyNames) {
+            Set<Object> propertyValues = getValues(resource, propertyName);
+            if (!propertyValues.isEmpty()) {
+                values.put(propertyName, propertyValues);
+            }
+        }
+        if (!values.isEmpty()) {
+            result.put(resource.getPath(), values);
+        }
+
+        Iterator<Resource> children = provider.listChildren(resource);
+        while (children != null && children.hasNext()) {
+            collect(provider, children.next(), result);
+        }
+    }
+
+    /**
+     * Gets the current values of a property of a merged resource, as they
+     * would be indexed
+     *
+     * @param resource     Merged resource
+     * @param propertyName Property name
+     * @return Set of values, empty if the resource doesn't have the property
+     */
+    Set<Object> getValues(Resource resource, String propertyName) {
+        Set<Object> values = new HashSet<Object>();
+        if (LAYER_PROPERTIES.contains(propertyName)) {
+            ResourceResolver resolver = resource.getResourceResolver();
+            for (String mappedResourcePath : ((MergedResource) resource).getMappedResources()) {
+                Resource mappedResource = resolver.getResource(mappedResourcePath);
+                if (mappedResource != null) {
+                    addValues(values, ResourceUtil.getValueMap(mappedResource).get(propertyName));
+                }
+            }
+        } else {
+            addValues(values, resource.adaptTo(ValueMap.class).get(propertyName));
+        }
+        return values;
+    }
+
+    private void addValues(Set<Object> values, Object value) {
+        if (value instanceof Object[]) {
+            List<Object> items = Arrays.asList((Object[]) value);
+            values.addAll(items);
+            values.remove(null);
+        } else if (value != null) {
+            values.add(value);
+        }
+    }
+
+    /**
+     * Removes the path of an outdated entry from the index
+     *
+     * @param path   Merged resource path
+     * @param values Indexed values of that path, may be <code>null</code>
+     */
+    private void removeEntry(String path, Map<String, Set<Object>> values) {
+        if (values == null) {
+            return;
+        }
+        for (Map.Entry<String, Set<Object>> entry : values.entrySet()) {
+            Map<Object, Set<String>> valueIndex = index.get(entry.getKey());
+            for (Object value : entry.getValue()) {
+                Set<String> paths = valueIndex.get(value);
+                paths.remove(path);
+                if (paths.isEmpty()) {
+                    valueIndex.remove(value);
+                }
+            }
+        }
+    }
+
+}
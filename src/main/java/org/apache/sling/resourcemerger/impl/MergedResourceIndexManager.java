@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.ConfigurationPolicy;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.resourcemerger.api.MergedResourceIndex;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+@Component(metatype = false, policy = ConfigurationPolicy.REQUIRE)
+@Properties({
+        @Property(name = MergedResourceIndexManager.PROP_MERGE_ROOT, value = "/merge", propertyPrivate = true),
+        @Property(name = MergedResourceIndexManager.PROP_INDEX_PROPERTIES, value = {}, cardinality = Integer.MAX_VALUE)
+})
+/**
+ * The <code>MergedResourceIndexManager</code> registers the
+ * {@link MergedResourceIndex} service and keeps it up to date. It only runs
+ * when configured, and only registers the index when merged properties to
+ * index are configured.
+ */
+public class MergedResourceIndexManager {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Path of the merged resources to index
+     */
+    static final String PROP_MERGE_ROOT = "merge.root";
+
+    /**
+     * Names of the merged properties to index
+     */
+    static final String PROP_INDEX_PROPERTIES = "merge.index.properties";
+
+    @Reference
+    private ResourceResolverFactory resourceResolverFactory;
+
+    private MergedResourceIndexImpl index;
+
+    private MergedResourceIndexUpdater indexUpdater;
+
+    private ServiceRegistration indexRegistration;
+
+    @Activate
+    private void activate(BundleContext bundleContext, Map<String, ?> properties) {
+        String mergeRootPath = PropertiesUtil.toString(properties.get(PROP_MERGE_ROOT), "/merge");
+        List<String> indexProperties = new ArrayList<String>();
+        for (String propertyName : PropertiesUtil.toStringArray(properties.get(PROP_INDEX_PROPERTIES), new String[0])) {
+            if (StringUtils.isNotBlank(propertyName)) {
+                indexProperties.add(propertyName.trim());
+            }
+        }
+        if (indexProperties.isEmpty()) {
+            log.info("No merged property configured, the merged resource index is not available");
+            return;
+        }
+
+        index = new MergedResourceIndexImpl(mergeRootPath, indexProperties.toArray(new String[indexProperties.size()]));
+        indexUpdater = new MergedResourceIndexUpdater(resourceResolverFactory, mergeRootPath, index, bundleContext,
+                Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "MergedResourceIndexUpdater");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }));
+        indexUpdater.scheduleFullUpdate();
+
+        // Registered right away: lookups fail with an IllegalStateException until the index is built
+        Hashtable<String, Object> indexServiceProperties = new Hashtable<String, Object>();
+        indexServiceProperties.put(PROP_INDEX_PROPERTIES, indexProperties.toArray(new String[indexProperties.size()]));
+        indexRegistration = bundleContext.registerService(MergedResourceIndex.class.getName(), index, indexServiceProperties);
+    }
+
+    @Deactivate
+    private void deactivate() {
+        if (indexRegistration != null) {
+            indexRegistration.unregister();
+            indexRegistration = null;
+        }
+        if (indexUpdater != null) {
+            indexUpdater.stop();
+            indexUpdater = null;
+        }
+        if (index != null) {
+            // Callers still holding the index must not get stale results
+            index.close();
+            index = null;
+        }
+    }
+
+}
@@ -0,0 +1,371 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger.impl;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>MergedResourceIndexUpdater</code> keeps a
+ * {@link MergedResourceIndexImpl} up to date with the changes of the
+ * resources below the search paths.
+ * <p>
+ * A change of a physical resource re-indexes the merged subtree at the same
+ * relative path: the hiding properties of a resource only affect that
+ * resource and its descendants, and the order of siblings is not indexed.
+ * Pending subtrees are coalesced: a subtree which is already pending absorbs
+ * the changes of its descendants. Updates run on a single thread, each batch
+ * of pending subtrees being read with one resource resolver.
+ * <p>
+ * The search path is read by the first batch, which then registers the
+ * updater as event handler for the changes below it. Subtrees which can't be
+ * indexed, e.g. because no resolver can be obtained, stay pending and are
+ * retried with an exponential back-off, so that the index is neither left
+ * unbuilt nor silently outdated.
+ */
+public class MergedResourceIndexUpdater implements EventHandler, Runnable {
+
+    /**
+     * Delay before the first retry of a failed batch, in milliseconds
+     */
+    static final long MIN_RETRY_DELAY = 100;
+
+    /**
+     * Maximum delay between retries of a failed batch, in milliseconds
+     */
+    static final long MAX_RETRY_DELAY = 60000;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ResourceResolverFactory resourceResolverFactory;
+
+    private final String mergeRootPath;
+
+    private final MergedResourceIndexImpl index;
+
+    private final BundleContext bundleContext;
+
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Search paths without trailing slash, read by the first batch
+     */
+    private volatile String[] basePaths;
+
+    /**
+     * Relative paths of the subtrees to index, "" standing for the whole tree
+     */
+    private final SortedSet<String> pendingPaths = new TreeSet<String>();
+
+    private boolean scheduled;
+
+    /**
+     * Number of batches which failed in a row
+     */
+    private int failures;
+
+    private ServiceRegistration registration;
+
+    private boolean stopped;
+
+    /**
+     * Constructor
+     *
+     * @param resourceResolverFactory Factory providing the resolvers reading the merged tree
+     * @param mergeRootPath           Merge root path
+     * @param index                   Index to update
+     * @param bundleContext           Bundle context registering the event handler
+     * @param executor                Single thread executor running the updates
+     */
+    public MergedResourceIndexUpdater(ResourceResolverFactory resourceResolverFactory, String mergeRootPath,
+                                      MergedResourceIndexImpl index, BundleContext bundleContext,
+                                      ScheduledExecutorService executor) {
+        this.resourceResolverFactory = resourceResolverFactory;
+        this.mergeRootPath = mergeRootPath;
+        this.index = index;
+        this.bundleContext = bundleContext;
+        this.executor = executor;
+    }
+
+    /**
+     * Schedules the indexing of the whole merged tree
+     */
+    public void scheduleFullUpdate() {
+        schedule("");
+    }
+
+    /**
+     * Schedules the re-indexing of the merged subtree affected by the change
+     * of a physical resource.
+     *
+     * @param event Resource event
+     */
+    public void handleEvent(Event event) {
+        String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+        String relativePath = path != null ? getRelativePath(path) : null;
+        if (relativePath != null) {
+            schedule(relativePath);
+        }
+    }
+
+    /**
+     * Stops the updates, pending ones being dropped, and unregisters the
+     * event handler
+     */
+    public void stop() {
+        synchronized (this) {
+            stopped = true;
+            if (registration != null) {
+                registration.unregister();
+                registration = null;
+            }
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Indexes the pending subtrees, and schedules the next batch if some are
+     * still pending
+     */
+    public void run() {
+        List<String> paths;
+        synchronized (pendingPaths) {
+            paths = new ArrayList<String>(pendingPaths);
+            pendingPaths.clear();
+        }
+        List<String> failedPaths = update(paths);
+
+        synchronized (pendingPaths) {
+            long delay = 0;
+            if (failedPaths.isEmpty()) {
+                failures = 0;
+            } else {
+                for (String relativePath : failedPaths) {
+                    addPending(relativePath);
+                }
+                delay = getRetryDelay(++failures);
+                log.warn("Unable to index {} merged subtree(s), retrying in {} ms", failedPaths.size(), delay);
+            }
+            scheduled = false;
+            if (!pendingPaths.isEmpty()) {
+                execute(delay);
+            }
+        }
+    }
+
+    private void schedule(String relativePath) {
+        synchronized (pendingPaths) {
+            addPending(relativePath);
+            if (!scheduled) {
+                execute(0);
+            }
+        }
+    }
+
+    /**
+     * Adds a subtree to the pending ones, unless it or one of its ancestors
+     * is already pending
+     */
+    private void addPending(String relativePath) {
+        for (String path = relativePath; path != null; path = getParentPath(path)) {
+            if (pendingPaths.contains(path)) {
+                return;
+            }
+        }
+        // Descendants are indexed again along with this subtree
+        String descendantsPrefix = relativePath + "/";
+        pendingPaths.subSet(descendantsPrefix, descendantsPrefix + '\uffff').clear();
+        pendingPaths.add(relativePath);
+    }
+
+    private void execute(long delay) {
+        try {
+            executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+            scheduled = true;
+        } catch (RejectedExecutionException e) {
+            // Updater is stopped
+        }
+    }
+
+    /**
+     * Indexes the given subtrees
+     *
+     * @return Subtrees which could not be indexed
+     */
+    private List<String> update(List<String> relativePaths) {
+        ResourceResolver resolver = null;
+        try {
+            // Listen before reading the merged tree, so that no change is missed in between
+            if (basePaths == null && !listen()) {
+                return relativePaths;
+            }
+            resolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
+            MergedResourceProvider provider = new MergedResourceProvider(mergeRootPath);
+            List<String> failedPaths = new ArrayList<String>();
+            for (String relativePath : relativePaths) {
+                try {
+                    index.update(provider, resolver, relativePath);
+                } catch (RuntimeException e) {
+                    log.warn("Unable to update the merged resource index for " + mergeRootPath + relativePath, e);
+                    failedPaths.add(relativePath);
+                }
+            }
+            return failedPaths;
+        } catch (LoginException e) {
+            log.warn("Unable to update the merged resource index", e);
+            return relativePaths;
+        } catch (RuntimeException e) {
+            log.warn("Unable to update the merged resource index", e);
+            return relativePaths;
+        } finally {
+            if (resolver != null) {
+                resolver.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the search path, and registers the updater as event handler for
+     * the changes below it
+     *
+     * @return <code>false</code> if there is no search path
+     */
+    private boolean listen() throws LoginException {
+        String[] searchPath;
+        ResourceResolver resolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
+        try {
+            searchPath = resolver.getSearchPath();
+        } finally {
+            resolver.close();
+        }
+        if (searchPath == null || searchPath.length == 0) {
+            log.warn("No search path available yet, the merged resource index can't be built");
+            return false;
+        }
+        String[] paths = new String[searchPath.length];
+        for (int i = 0; i < searchPath.length; i++) {
+            paths[i] = StringUtils.removeEnd(searchPath[i], "/");
+        }
+        basePaths = paths;
+
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put(EventConstants.EVENT_TOPIC, new String[]{
+                SlingConstants.TOPIC_RESOURCE_ADDED,
+                SlingConstants.TOPIC_RESOURCE_CHANGED,
+                SlingConstants.TOPIC_RESOURCE_REMOVED
+        });
+        properties.put(EventConstants.EVENT_FILTER, getEventFilter(paths));
+        synchronized (this) {
+            if (!stopped) {
+                registration = bundleContext.registerService(EventHandler.class.getName(), this, properties);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the path of a physical resource relative to the search path it
+     * belongs to.
+     *
+     * @param physicalPath Absolute path of the physical resource
+     * @return Relative path, "" for a search path itself, or
+     *         <code>null</code> if the physical resource is not in any search
+     *         path
+     */
+    private String getRelativePath(String physicalPath) {
+        String[] paths = basePaths;
+        for (int i = 0; paths != null && i < paths.length; i++) {
+            if (physicalPath.equals(paths[i])) {
+                return "";
+            } else if (physicalPath.startsWith(paths[i] + "/")) {
+                return physicalPath.substring(paths[i].length());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the delay before retrying a batch
+     *
+     * @param failures Number of batches which failed in a row
+     * @return Delay in milliseconds
+     */
+    static long getRetryDelay(int failures) {
+        return Math.min(MIN_RETRY_DELAY << Math.min(failures - 1, 20), MAX_RETRY_DELAY);
+    }
+
+    /**
+     * Gets the filter restricting the handled events to the resources below
+     * the search paths.
+     *
+     * @param basePaths Search paths without trailing slash
+     * @return LDAP filter on the event path
+     */
+    private static String getEventFilter(String[] basePaths) {
+        StringBuilder filter = new StringBuilder("(|");
+        for (String basePath : basePaths) {
+            String escapedPath = escapeFilterValue(basePath);
+            filter.append("(").append(SlingConstants.PROPERTY_PATH).append("=").append(escapedPath).append(")");
+            filter.append("(").append(SlingConstants.PROPERTY_PATH).append("=").append(escapedPath).append("/*)");
+        }
+        return filter.append(")").toString();
+    }
+
+    /**
+     * @param relativePath Relative path
+     * @return Relative path of the parent, or <code>null</code> for the root
+     */
+    private static String getParentPath(String relativePath) {
+        if (relativePath.length() == 0) {
+            return null;
+        }
+        return relativePath.substring(0, Math.max(relativePath.lastIndexOf('/'), 0));
+    }
+
+    private static String escapeFilterValue(String value) {
+        StringBuilder escaped = new StringBuilder();
+        for (char c : value.toCharArray()) {
+            if (c == '\\' || c == '*' || c == '(' || c == ')') {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+}
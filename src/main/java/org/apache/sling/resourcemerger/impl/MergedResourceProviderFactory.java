@@ -18,32 +18,81 @@
  */
 package org.apache.sling.resourcemerger.impl;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceProvider;
 import org.apache.sling.api.resource.ResourceProviderFactory;
+import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.resourcemerger.api.AsyncMergedResourceLookup;
 
 @Component(metatype = false)
-@Service(value = ResourceProviderFactory.class)
+@Service(value = {ResourceProviderFactory.class, AsyncMergedResourceLookup.class})
 @Properties({
-        @Property(name = ResourceProvider.ROOTS, value = {"/merge"}, propertyPrivate = true)
+        @Property(name = ResourceProvider.ROOTS, value = {"/merge"}, propertyPrivate = true),
+        @Property(name = MergedResourceProviderFactory.PROP_ASYNC_THREADS, intValue = MergedResourceProviderFactory.DEFAULT_ASYNC_THREADS)
 })
 /**
  * The <code>MergedResourceProviderFactory</code> creates merged resource
- * providers.
+ * providers, and serves asynchronous lookups of merged resources.
  */
-public class MergedResourceProviderFactory implements ResourceProviderFactory {
+public class MergedResourceProviderFactory implements ResourceProviderFactory, AsyncMergedResourceLookup {
+
+    /**
+     * Number of threads of the pool serving asynchronous lookups when no
+     * executor service is available. A value lower than or equal to zero
+     * uses an unbounded pool.
+     */
+    static final String PROP_ASYNC_THREADS = "merge.async.threads";
+
+    static final int DEFAULT_ASYNC_THREADS = 10;
+
+    /**
+     * Executor service running the asynchronous lookups instead of the pool
+     * of this factory, if any
+     */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC,
+            target = "(" + AsyncMergedResourceLookup.PROPERTY_EXECUTOR + "=true)")
+    private ExecutorService executor;
 
     private String mergeRootPath;
 
+    private int asyncThreads;
+
+    private boolean active;
+
+    /**
+     * Pool created on the first asynchronous lookup without executor service
+     */
+    private ExecutorService pool;
+
+    private final Set<Future<?>> pendingLookups = Collections.synchronizedSet(new HashSet<Future<?>>());
+
     /**
      * {@inheritDoc}
      */
@@ -58,12 +107,129 @@ public class MergedResourceProviderFactory implements ResourceProviderFactory {
         return new MergedResourceProvider(mergeRootPath);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public Future<Resource> getResourceAsync(final ResourceResolver resolver, final String path) {
+        final MergedResourceProvider provider = new MergedResourceProvider(mergeRootPath);
+        return submit(new Callable<Resource>() {
+            public Resource call() {
+                return provider.getResource(resolver, path);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Future<List<Resource>> listChildrenAsync(final Resource resource) {
+        final MergedResourceProvider provider = new MergedResourceProvider(mergeRootPath);
+        return submit(new Callable<List<Resource>>() {
+            public List<Resource> call() {
+                Iterator<Resource> it = provider.listChildren(resource);
+                if (it == null) {
+                    return null;
+                }
+                List<Resource> children = new ArrayList<Resource>();
+                while (it.hasNext()) {
+                    children.add(it.next());
+                }
+                return children;
+            }
+        });
+    }
+
     @Activate
-    private void configure(Map<String, ?> properties) {
+    private synchronized void configure(Map<String, ?> properties) {
         String[] mergeRootPaths = PropertiesUtil.toStringArray(properties.get(ResourceProvider.ROOTS), new String[0]);
         if (mergeRootPaths.length > 0) {
             mergeRootPath = mergeRootPaths[0];
         }
+        asyncThreads = PropertiesUtil.toInteger(properties.get(PROP_ASYNC_THREADS), DEFAULT_ASYNC_THREADS);
+        active = true;
+    }
+
+    @Deactivate
+    private void deactivate() {
+        ExecutorService stoppedPool;
+        synchronized (this) {
+            active = false;
+            stoppedPool = pool;
+            pool = null;
+        }
+
+        // Nobody may wait forever for a lookup which won't run anymore
+        List<Future<?>> lookups;
+        synchronized (pendingLookups) {
+            lookups = new ArrayList<Future<?>>(pendingLookups);
+        }
+        for (Future<?> lookup : lookups) {
+            lookup.cancel(false);
+        }
+        if (stoppedPool != null) {
+            stoppedPool.shutdownNow();
+        }
+    }
+
+    protected synchronized void bindExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    protected synchronized void unbindExecutor(ExecutorService executor) {
+        if (this.executor == executor) {
+            this.executor = null;
+        }
+    }
+
+    private <T> Future<T> submit(Callable<T> task) {
+        FutureTask<T> lookup = new FutureTask<T>(task) {
+            @Override
+            protected void done() {
+                pendingLookups.remove(this);
+            }
+        };
+        ExecutorService lookupExecutor;
+        synchronized (this) {
+            lookupExecutor = getExecutor();
+            pendingLookups.add(lookup);
+        }
+        try {
+            lookupExecutor.execute(lookup);
+        } catch (RejectedExecutionException e) {
+            pendingLookups.remove(lookup);
+            throw new IllegalStateException("Asynchronous lookups are not available anymore: " + e.getMessage());
+        }
+        return lookup;
+    }
+
+    /**
+     * Gets the executor service if bound, else the pool of this factory,
+     * which is only created once needed
+     */
+    private ExecutorService getExecutor() {
+        if (!active) {
+            throw new IllegalStateException("Asynchronous lookups are not available anymore");
+        }
+        if (executor != null) {
+            return executor;
+        }
+        if (pool == null) {
+            ThreadFactory threadFactory = new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "MergedResourceProvider-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            };
+            if (asyncThreads > 0) {
+                pool = Executors.newFixedThreadPool(asyncThreads, threadFactory);
+            } else {
+                pool = Executors.newCachedThreadPool(threadFactory);
+            }
+        }
+        return pool;
     }
 
 }
@@ -0,0 +1,291 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.resourcemerger.impl.MergedResourceConstants;
+
+/**
+ * In-memory content made of several layers, one per search path, filled with
+ * random resources using the merge properties.
+ * <p>
+ * Content is copy-on-write: every change creates a new immutable
+ * {@link Snapshot}, so that readers get a consistent view of all the layers
+ * while writers keep on changing them.
+ */
+public class LayeredContent {
+
+    static final String[] NAMES = {"a", "b", "c", "d", "e"};
+
+    static final String[] TITLES = {"title-0", "title-1", "title-2"};
+
+    static final String[] RESOURCE_TYPES = {"type/x", "type/y", "type/z"};
+
+    static final String[] HIDDEN_PROPERTIES = {"jcr:title", "sling:resourceType", "description", "*"};
+
+    private static final int MAX_DEPTH = 3;
+
+    private final String[] searchPath;
+
+    private volatile Snapshot snapshot;
+
+    /**
+     * Constructor
+     *
+     * @param searchPath Search path, with the highest priority first
+     * @param random     Random used to generate the initial content
+     */
+    public LayeredContent(String[] searchPath, Random random) {
+        this.searchPath = searchPath;
+        Map<String, Node> nodes = new HashMap<String, Node>();
+        for (String basePath : searchPath) {
+            createNode(nodes, removeTrailingSlash(basePath), new HashMap<String, Object>(), random, 0);
+        }
+        snapshot = new Snapshot(nodes);
+    }
+
+    public String[] getSearchPath() {
+        return searchPath;
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Applies a random change to one of the layers.
+     *
+     * @param random Random
+     * @param listener Listener notified of the change before any other change
+     *                 is applied, may be <code>null</code>
+     */
+    public synchronized void change(Random random, ChangeListener listener) {
+        Map<String, Node> nodes = new HashMap<String, Node>(snapshot.nodes);
+        String basePath = removeTrailingSlash(searchPath[random.nextInt(searchPath.length)]);
+        List<String> layerPaths = new ArrayList<String>();
+        for (String path : nodes.keySet()) {
+            if (path.equals(basePath) || path.startsWith(basePath + "/")) {
+                layerPaths.add(path);
+            }
+        }
+        Collections.sort(layerPaths);
+        String path = layerPaths.get(random.nextInt(layerPaths.size()));
+        Node node = nodes.get(path);
+
+        String topic;
+        String changedPath = path;
+        int operation = random.nextInt(4);
+        if (operation == 0 && !path.equals(basePath)) {
+            removeNode(nodes, path);
+            topic = SlingConstants.TOPIC_RESOURCE_REMOVED;
+        } else if (operation == 1 && node.children.size() < NAMES.length && depth(basePath, path) < MAX_DEPTH) {
+            String name;
+            do {
+                name = NAMES[random.nextInt(NAMES.length)];
+            } while (node.children.contains(name));
+            changedPath = path + "/" + name;
+            createNode(nodes, changedPath, new HashMap<String, Object>(), random, depth(basePath, changedPath));
+            topic = SlingConstants.TOPIC_RESOURCE_ADDED;
+        } else if (operation == 2 && !node.properties.isEmpty()) {
+            Map<String, Object> properties = new HashMap<String, Object>(node.properties);
+            List<String> keys = new ArrayList<String>(properties.keySet());
+            Collections.sort(keys);
+            properties.remove(keys.get(random.nextInt(keys.size())));
+            nodes.put(path, new Node(properties, node.children));
+            topic = SlingConstants.TOPIC_RESOURCE_CHANGED;
+        } else {
+            Map<String, Object> properties = new HashMap<String, Object>(node.properties);
+            addRandomProperty(properties, random);
+            nodes.put(path, new Node(properties, node.children));
+            topic = SlingConstants.TOPIC_RESOURCE_CHANGED;
+        }
+
+        snapshot = new Snapshot(nodes);
+        if (listener != null) {
+            listener.changed(topic, changedPath);
+        }
+    }
+
+    private void createNode(Map<String, Node> nodes, String path, Map<String, Object> properties, Random random, int depth) {
+        if (depth > 0) {
+            int count = random.nextInt(4);
+            for (int i = 0; i < count; i++) {
+                addRandomProperty(properties, random);
+            }
+        }
+        List<String> children = new ArrayList<String>();
+        if (depth < MAX_DEPTH) {
+            for (String name : NAMES) {
+                if (random.nextInt(3) > 0) {
+                    children.add(name);
+                }
+            }
+            Collections.shuffle(children, random);
+        }
+        nodes.put(path, new Node(properties, children));
+        if (depth > 0) {
+            String parentPath = path.substring(0, path.lastIndexOf('/'));
+            Node parent = nodes.get(parentPath);
+            if (!parent.children.contains(getName(path))) {
+                List<String> parentChildren = new ArrayList<String>(parent.children);
+                parentChildren.add(getName(path));
+                nodes.put(parentPath, new Node(parent.properties, parentChildren));
+            }
+        }
+        for (String name : children) {
+            createNode(nodes, path + "/" + name, new HashMap<String, Object>(), random, depth + 1);
+        }
+    }
+
+    private void removeNode(Map<String, Node> nodes, String path) {
+        List<String> paths = new ArrayList<String>(nodes.keySet());
+        for (String p : paths) {
+            if (p.equals(path) || p.startsWith(path + "/")) {
+                nodes.remove(p);
+            }
+        }
+        String parentPath = path.substring(0, path.lastIndexOf('/'));
+        Node parent = nodes.get(parentPath);
+        List<String> parentChildren = new ArrayList<String>(parent.children);
+        parentChildren.remove(getName(path));
+        nodes.put(parentPath, new Node(parent.properties, parentChildren));
+    }
+
+    private void addRandomProperty(Map<String, Object> properties, Random random) {
+        switch (random.nextInt(8)) {
+            case 0:
+            case 1:
+                properties.put("jcr:title", pick(TITLES, random));
+                break;
+            case 2:
+            case 3:
+                properties.put("sling:resourceType", pick(RESOURCE_TYPES, random));
+                break;
+            case 4:
+                properties.put("description", "description-" + random.nextInt(2));
+                break;
+            case 5:
+                properties.put(MergedResourceConstants.PN_HIDE_PROPERTIES, pickOneOrMore(HIDDEN_PROPERTIES, random));
+                break;
+            case 6:
+                properties.put(MergedResourceConstants.PN_HIDE_CHILDREN, random.nextInt(4) == 0 ? "*" : pickOneOrMore(NAMES, random));
+                break;
+            default:
+                if (random.nextBoolean()) {
+                    properties.put(MergedResourceConstants.PN_ORDER_BEFORE, pick(NAMES, random));
+                } else {
+                    properties.put(MergedResourceConstants.PN_HIDE_RESOURCE, Boolean.TRUE);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Picks either a single value, or an array of one or two values
+     */
+    private Object pickOneOrMore(String[] values, Random random) {
+        if (random.nextBoolean()) {
+            return pick(values, random);
+        }
+        String first = pick(values, random);
+        String second = pick(values, random);
+        return first.equals(second) ? new String[]{first} : new String[]{first, second};
+    }
+
+    private String pick(String[] values, Random random) {
+        return values[random.nextInt(values.length)];
+    }
+
+    private int depth(String basePath, String path) {
+        int depth = 0;
+        for (int i = basePath.length(); i < path.length(); i++) {
+            if (path.charAt(i) == '/') {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    static String removeTrailingSlash(String path) {
+        return path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+    }
+
+    static String getName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Listener of content changes
+     */
+    public interface ChangeListener {
+
+        /**
+         * @param topic Resource event topic
+         * @param path  Path of the changed physical resource
+         */
+        void changed(String topic, String path);
+
+    }
+
+    /**
+     * Immutable resource of a layer
+     */
+    public static class Node {
+
+        final Map<String, Object> properties;
+
+        final List<String> children;
+
+        Node(Map<String, Object> properties, List<String> children) {
+            this.properties = Collections.unmodifiableMap(new LinkedHashMap<String, Object>(properties));
+            this.children = Collections.unmodifiableList(new ArrayList<String>(children));
+        }
+
+    }
+
+    /**
+     * Immutable state of all the layers
+     */
+    public static class Snapshot {
+
+        private final Map<String, Node> nodes;
+
+        Snapshot(Map<String, Node> nodes) {
+            this.nodes = nodes;
+        }
+
+        /**
+         * @param path Absolute path
+         * @return Node at that path, or <code>null</code> if it does not exist
+         */
+        public Node getNode(String path) {
+            return nodes.get(path);
+        }
+
+    }
+
+}
@@ -0,0 +1,260 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.resourcemerger.api.AsyncMergedResourceLookup;
+import org.apache.sling.resourcemerger.impl.MergedResource;
+import org.apache.sling.resourcemerger.impl.MergedResourceProvider;
+import org.apache.sling.resourcemerger.impl.MergedResourceProviderFactory;
+
+/**
+ * Tests the {@link AsyncMergedResourceLookup} service against the synchronous
+ * lookups, over random {@link LayeredContent}.
+ */
+public class MergedResourceAsyncTest extends TestCase {
+
+    private static final String MERGE_ROOT_PATH = "/merge";
+
+    private static final String[] SEARCH_PATH = {"/apps/", "/custom/", "/libs/"};
+
+    private MergedResourceProviderFactory factory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        factory = new MergedResourceProviderFactory();
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("provider.roots", new String[]{MERGE_ROOT_PATH});
+        properties.put("merge.async.threads", 8);
+        invoke(factory, "configure", properties);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        invoke(factory, "deactivate");
+        super.tearDown();
+    }
+
+    public void testAsyncFanOut() throws Exception {
+        Random random = new Random(0);
+        MergedResourceProvider provider = (MergedResourceProvider) factory.getResourceProvider(null);
+        for (int i = 0; i < 50; i++) {
+            LayeredContent content = new LayeredContent(SEARCH_PATH, random);
+            SnapshotResourceResolver resolver = new SnapshotResourceResolver(content);
+
+            // Each concurrent lookup gets its own resolver, which fails if used by two threads at once
+            List<String> paths = new ArrayList<String>();
+            List<Future<Resource>> futures = new ArrayList<Future<Resource>>();
+            for (int j = 0; j < 32; j++) {
+                paths.add(MERGE_ROOT_PATH + randomRelativePath(random));
+                futures.add(factory.getResourceAsync(resolver.clone(null), paths.get(j)));
+            }
+            List<Resource> resources = new ArrayList<Resource>();
+            for (Future<Resource> future : futures) {
+                resources.add(future.get());
+            }
+
+            List<Future<List<Resource>>> childrenFutures = new ArrayList<Future<List<Resource>>>();
+            for (int j = 0; j < resources.size(); j++) {
+                Resource expected = provider.getResource(resolver, paths.get(j));
+                assertSameResource(paths.get(j), expected, resources.get(j));
+                childrenFutures.add(expected != null ? factory.listChildrenAsync(resources.get(j)) : null);
+            }
+            for (int j = 0; j < resources.size(); j++) {
+                if (childrenFutures.get(j) != null) {
+                    List<Resource> expected = toList(provider.listChildren(provider.getResource(resolver, paths.get(j))));
+                    List<Resource> children = childrenFutures.get(j).get();
+                    assertEquals(paths.get(j), getNames(expected), getNames(children));
+                    for (int k = 0; k < children.size(); k++) {
+                        assertSameResource(children.get(k).getPath(), expected.get(k), children.get(k));
+                    }
+                }
+            }
+        }
+    }
+
+    public void testAsyncAfterDeactivation() throws Exception {
+        LayeredContent content = new LayeredContent(SEARCH_PATH, new Random(0));
+        CountDownLatch blocked = new CountDownLatch(8);
+        CountDownLatch release = new CountDownLatch(1);
+
+        // Keep all threads busy so that the last lookup stays queued
+        for (int i = 0; i < 8; i++) {
+            factory.getResourceAsync(new BlockingResourceResolver(content, blocked, release), MERGE_ROOT_PATH);
+        }
+        blocked.await();
+        Future<Resource> queued = factory.getResourceAsync(new SnapshotResourceResolver(content), MERGE_ROOT_PATH);
+
+        invoke(factory, "deactivate");
+        release.countDown();
+        assertTrue("Queued lookups must be cancelled on deactivation", queued.isCancelled());
+        try {
+            factory.getResourceAsync(new SnapshotResourceResolver(content), MERGE_ROOT_PATH);
+            fail("Asynchronous lookups must fail once the factory is deactivated");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    public void testExecutorService() throws Exception {
+        LayeredContent content = new LayeredContent(SEARCH_PATH, new Random(0));
+        final AtomicInteger executions = new AtomicInteger();
+        ExecutorService executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>()) {
+            @Override
+            public void execute(Runnable command) {
+                executions.incrementAndGet();
+                super.execute(command);
+            }
+        };
+        try {
+            // The pool is only created when a lookup needs it
+            assertNull(getField(factory, "pool"));
+
+            invoke(factory, "bindExecutor", executor);
+            assertNotNull(factory.getResourceAsync(new SnapshotResourceResolver(content), MERGE_ROOT_PATH).get());
+            assertEquals(1, executions.get());
+            assertNull(getField(factory, "pool"));
+
+            invoke(factory, "unbindExecutor", executor);
+            assertNotNull(factory.getResourceAsync(new SnapshotResourceResolver(content), MERGE_ROOT_PATH).get());
+            assertEquals(1, executions.get());
+            assertNotNull(getField(factory, "pool"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Resolver blocking on the search path until released
+     */
+    private static class BlockingResourceResolver extends SnapshotResourceResolver {
+
+        private final CountDownLatch blocked;
+
+        private final CountDownLatch release;
+
+        BlockingResourceResolver(LayeredContent content, CountDownLatch blocked, CountDownLatch release) {
+            super(content);
+            this.blocked = blocked;
+            this.release = release;
+        }
+
+        @Override
+        public String[] getSearchPath() {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.getSearchPath();
+        }
+
+    }
+
+    private static void assertSameResource(String path, Resource expected, Resource actual) {
+        if (expected == null || actual == null) {
+            assertEquals(path, expected, actual);
+            return;
+        }
+        assertEquals(path, expected.getPath(), actual.getPath());
+        assertEquals(path, toList(((MergedResource) expected).getMappedResources()), toList(((MergedResource) actual).getMappedResources()));
+        assertEquals(path, comparable(expected.adaptTo(ValueMap.class)), comparable(actual.adaptTo(ValueMap.class)));
+    }
+
+    private static List<String> getNames(List<Resource> resources) {
+        List<String> names = new ArrayList<String>();
+        for (Resource resource : resources) {
+            names.add(resource.getName());
+        }
+        return names;
+    }
+
+    private static String randomRelativePath(Random random) {
+        StringBuilder path = new StringBuilder();
+        int depth = random.nextInt(4);
+        for (int i = 0; i < depth; i++) {
+            path.append("/").append(LayeredContent.NAMES[random.nextInt(LayeredContent.NAMES.length)]);
+        }
+        return path.toString();
+    }
+
+    private static <T> List<T> toList(Iterable<T> iterable) {
+        return toList(iterable.iterator());
+    }
+
+    private static <T> List<T> toList(Iterator<T> it) {
+        List<T> list = new ArrayList<T>();
+        while (it != null && it.hasNext()) {
+            list.add(it.next());
+        }
+        return list;
+    }
+
+    /**
+     * Copies properties so that array values can be compared with equals
+     */
+    private static Map<String, Object> comparable(Map<String, Object> properties) {
+        Map<String, Object> result = new HashMap<String, Object>();
+        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            Object value = entry.getValue();
+            result.put(entry.getKey(), value instanceof Object[] ? Arrays.asList((Object[]) value) : value);
+        }
+        return result;
+    }
+
+    private static Object getField(Object target, String name) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(target);
+    }
+
+    private static void invoke(Object target, String name, Object... args) throws Exception {
+        for (Method method : target.getClass().getDeclaredMethods()) {
+            if (method.getName().equals(name) && method.getParameterTypes().length == args.length) {
+                method.setAccessible(true);
+                method.invoke(target, args);
+                return;
+            }
+        }
+        throw new NoSuchMethodException(name);
+    }
+
+}
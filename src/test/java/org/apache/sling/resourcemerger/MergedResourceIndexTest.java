@@ -0,0 +1,488 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.resourcemerger.api.MergedResourceIndex;
+import org.apache.sling.resourcemerger.impl.MergedResource;
+import org.apache.sling.resourcemerger.impl.MergedResourceConstants;
+import org.apache.sling.resourcemerger.impl.MergedResourceIndexImpl;
+import org.apache.sling.resourcemerger.impl.MergedResourceIndexManager;
+import org.apache.sling.resourcemerger.impl.MergedResourceIndexUpdater;
+import org.apache.sling.resourcemerger.impl.MergedResourceProvider;
+import org.osgi.framework.Filter;
+import org.osgi.service.event.EventHandler;
+
+/**
+ * Tests the {@link MergedResourceIndex} service against a crawl of the merged
+ * tree, over random {@link LayeredContent}.
+ */
+public class MergedResourceIndexTest extends TestCase {
+
+    private static final String MERGE_ROOT_PATH = "/merge";
+
+    private static final String[] SEARCH_PATH = {"/apps/", "/custom/", "/libs/"};
+
+    private static final String[] INDEXED_PROPERTIES = {
+            "sling:resourceType", "jcr:title", MergedResourceConstants.PN_HIDE_PROPERTIES
+    };
+
+    private static final long INDEX_TIMEOUT = 30000;
+
+    private final MergedResourceProvider provider = new MergedResourceProvider(MERGE_ROOT_PATH);
+
+    public void testIndexServices() throws Exception {
+        LayeredContent content = new LayeredContent(SEARCH_PATH, new Random(0));
+
+        // Nothing is registered without indexed properties
+        TestBundleContext bundleContext = new TestBundleContext();
+        MergedResourceIndexManager manager = createIndexManager(content, bundleContext, new String[0]);
+        assertTrue(bundleContext.getServices(EventHandler.class).isEmpty());
+        assertTrue(bundleContext.getServices(MergedResourceIndex.class).isEmpty());
+        invoke(manager, "deactivate");
+
+        // The handler is registered once the search path is read, and only gets the events of the search paths
+        bundleContext = new TestBundleContext();
+        manager = createIndexManager(content, bundleContext, INDEXED_PROPERTIES);
+        assertEquals(1, bundleContext.getServices(MergedResourceIndex.class).size());
+        MergedResourceIndex index = bundleContext.getServices(MergedResourceIndex.class).get(0);
+        waitForIndex(index, content);
+        assertEquals(1, bundleContext.getServices(EventHandler.class).size());
+        Filter filter = bundleContext.getEventFilter();
+        assertTrue(filter.match(pathProperties("/apps")));
+        assertTrue(filter.match(pathProperties("/libs/a/b")));
+        assertFalse(filter.match(pathProperties("/content/a")));
+        assertFalse(filter.match(pathProperties("/appsx/a")));
+
+        // Services are removed on deactivation, and references kept to the index can't be used anymore
+        invoke(manager, "deactivate");
+        assertTrue(bundleContext.getServices(EventHandler.class).isEmpty());
+        assertTrue(bundleContext.getServices(MergedResourceIndex.class).isEmpty());
+        assertFalse(index.isReady());
+        try {
+            index.findPaths("jcr:title", "title-0");
+            fail("Lookups must fail once the index is closed");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        try {
+            index.findResources(new SnapshotResourceResolver(content), "jcr:title", "title-0");
+            fail("Lookups must fail once the index is closed");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    public void testIndexEventScope() throws Exception {
+        LayeredContent content = new LayeredContent(SEARCH_PATH, new Random(0));
+        TestBundleContext bundleContext = new TestBundleContext();
+        ManualScheduler scheduler = new ManualScheduler();
+        MergedResourceIndexUpdater updater = new MergedResourceIndexUpdater(new ContentResourceResolverFactory(content),
+                MERGE_ROOT_PATH, new MergedResourceIndexImpl(MERGE_ROOT_PATH, INDEXED_PROPERTIES),
+                bundleContext.getBundleContext(), scheduler.getExecutor());
+        updater.scheduleFullUpdate();
+        scheduler.runNext();
+
+        // Only the changed subtree is indexed again, not the one of its parent
+        bundleContext.changed(SlingConstants.TOPIC_RESOURCE_CHANGED, "/apps/a/b");
+        bundleContext.changed(SlingConstants.TOPIC_RESOURCE_ADDED, "/libs/a/b/c");
+        bundleContext.changed(SlingConstants.TOPIC_RESOURCE_REMOVED, "/custom/c");
+        assertEquals(Arrays.asList("/a/b", "/c"), new ArrayList<Object>((Set<?>) getField(updater, "pendingPaths")));
+
+        // Changes of a search path itself affect the whole tree
+        bundleContext.changed(SlingConstants.TOPIC_RESOURCE_CHANGED, "/libs");
+        assertEquals(Arrays.asList(""), new ArrayList<Object>((Set<?>) getField(updater, "pendingPaths")));
+
+        updater.stop();
+        assertTrue(bundleContext.getServices(EventHandler.class).isEmpty());
+    }
+
+    public void testIndexRetry() throws Exception {
+        Random random = new Random(0);
+        LayeredContent content = new LayeredContent(SEARCH_PATH, random);
+        TestBundleContext bundleContext = new TestBundleContext();
+        ManualScheduler scheduler = new ManualScheduler();
+        ContentResourceResolverFactory resolverFactory = new ContentResourceResolverFactory(content);
+        MergedResourceIndexImpl index = new MergedResourceIndexImpl(MERGE_ROOT_PATH, INDEXED_PROPERTIES);
+        MergedResourceIndexUpdater updater = new MergedResourceIndexUpdater(resolverFactory, MERGE_ROOT_PATH, index,
+                bundleContext.getBundleContext(), scheduler.getExecutor());
+
+        // The initial build is retried with a growing delay until the search path can be read
+        resolverFactory.failingLogins = 2;
+        resolverFactory.missingSearchPaths = 1;
+        updater.scheduleFullUpdate();
+        for (long delay : new long[]{0, 100, 200, 400}) {
+            assertFalse(index.isReady());
+            assertTrue(bundleContext.getServices(EventHandler.class).isEmpty());
+            assertEquals(delay, scheduler.runNext());
+        }
+        assertTrue(index.isReady());
+        assertEquals(1, bundleContext.getServices(EventHandler.class).size());
+        assertFalse(scheduler.hasNext());
+
+        // Failed incremental updates stay pending until they succeed
+        resolverFactory.failingLogins = 1;
+        for (int i = 0; i < 10; i++) {
+            content.change(random, bundleContext);
+        }
+        assertEquals(0, scheduler.runNext());
+        assertEquals(100, scheduler.runNext());
+        assertFalse(scheduler.hasNext());
+        assertNull(getIndexDifference(index, crawl(provider, new SnapshotResourceResolver(content))));
+        updater.stop();
+    }
+
+    public void testIndexReadiness() throws Exception {
+        LayeredContent content = new LayeredContent(SEARCH_PATH, new Random(0));
+        SnapshotResourceResolver resolver = new SnapshotResourceResolver(content);
+        MergedResourceIndexImpl index = new MergedResourceIndexImpl(MERGE_ROOT_PATH, INDEXED_PROPERTIES);
+        assertFalse(index.isReady());
+        try {
+            index.findPaths("jcr:title", "title-0");
+            fail("Lookups must fail until the whole merged tree is indexed");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        // Subtree updates don't make the index ready
+        index.update(provider, resolver, "/a");
+        assertFalse(index.isReady());
+
+        index.update(provider, resolver, "");
+        assertTrue(index.isReady());
+        assertEquals(crawl(provider, resolver).get("jcr:title").get("title-0"), index.findPaths("jcr:title", "title-0"));
+        try {
+            index.findPaths("description", "x");
+            fail("Lookups of properties which are not indexed must fail");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        // Updates running when the index is closed don't make it ready again
+        index.close();
+        index.update(provider, resolver, "");
+        assertFalse(index.isReady());
+    }
+
+    public void testIndexUpdates() throws Exception {
+        Random random = new Random(0);
+        for (int i = 0; i < 20; i++) {
+            LayeredContent content = new LayeredContent(SEARCH_PATH, random);
+            TestBundleContext bundleContext = new TestBundleContext();
+            MergedResourceIndexManager manager = createIndexManager(content, bundleContext, INDEXED_PROPERTIES);
+            try {
+                MergedResourceIndex index = bundleContext.getServices(MergedResourceIndex.class).get(0);
+                waitForIndex(index, content);
+                for (int j = 0; j < 50; j++) {
+                    content.change(random, bundleContext);
+                    if (j % 5 == 4) {
+                        waitForIndex(index, content);
+                    }
+                }
+            } finally {
+                invoke(manager, "deactivate");
+            }
+        }
+    }
+
+    public void testFindResourcesWithOutdatedIndex() throws Exception {
+        Random random = new Random(0);
+        LayeredContent.ChangeListener noEvents = new LayeredContent.ChangeListener() {
+            public void changed(String topic, String path) {
+                // The index is not told about the changes
+            }
+        };
+
+        for (int i = 0; i < 20; i++) {
+            LayeredContent content = new LayeredContent(SEARCH_PATH, random);
+            TestBundleContext bundleContext = new TestBundleContext();
+            MergedResourceIndexManager manager = createIndexManager(content, bundleContext, INDEXED_PROPERTIES);
+            try {
+                MergedResourceIndex index = bundleContext.getServices(MergedResourceIndex.class).get(0);
+                waitForIndex(index, content);
+                for (int j = 0; j < 10; j++) {
+                    content.change(random, noEvents);
+                    SnapshotResourceResolver resolver = new SnapshotResourceResolver(content);
+                    Map<String, Map<Object, Set<String>>> expectedIndex = crawl(provider, resolver);
+                    for (String propertyName : INDEXED_PROPERTIES) {
+                        for (Object value : getValues(propertyName)) {
+                            // Found resources must be visible and hold the value, even though the index lags behind
+                            Set<String> expected = getPaths(expectedIndex, propertyName, value);
+                            Iterator<Resource> it = index.findResources(resolver, propertyName, value);
+                            while (it.hasNext()) {
+                                Resource resource = it.next();
+                                assertTrue(resource.getPath() + " found for " + propertyName + "=" + value,
+                                        expected.contains(resource.getPath()));
+                            }
+                        }
+                    }
+                }
+            } finally {
+                invoke(manager, "deactivate");
+            }
+        }
+    }
+
+    /**
+     * Waits until the index matches a crawl of the current content
+     */
+    private void waitForIndex(MergedResourceIndex index, LayeredContent content) throws InterruptedException {
+        Map<String, Map<Object, Set<String>>> expectedIndex = crawl(provider, new SnapshotResourceResolver(content));
+        long deadline = System.currentTimeMillis() + INDEX_TIMEOUT;
+        String difference = getIndexDifference(index, expectedIndex);
+        while (difference != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+            difference = getIndexDifference(index, expectedIndex);
+        }
+        assertNull(difference, difference);
+    }
+
+    private static String getIndexDifference(MergedResourceIndex index, Map<String, Map<Object, Set<String>>> expectedIndex) {
+        if (!index.isReady()) {
+            return "Index not ready";
+        }
+        for (String propertyName : INDEXED_PROPERTIES) {
+            Set<Object> values = new LinkedHashSet<Object>(expectedIndex.get(propertyName).keySet());
+            values.addAll(Arrays.asList(getValues(propertyName)));
+            for (Object value : values) {
+                Set<String> expected = getPaths(expectedIndex, propertyName, value);
+                Set<String> actual = index.findPaths(propertyName, value);
+                if (!actual.equals(expected)) {
+                    return propertyName + "=" + value + ": expected " + expected + " but was " + actual;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Builds the expected index by listing the whole merged tree
+     */
+    private static Map<String, Map<Object, Set<String>>> crawl(MergedResourceProvider provider, ResourceResolver resolver) {
+        Map<String, Map<Object, Set<String>>> index = new HashMap<String, Map<Object, Set<String>>>();
+        for (String propertyName : INDEXED_PROPERTIES) {
+            index.put(propertyName, new HashMap<Object, Set<String>>());
+        }
+        crawl(provider, provider.getResource(resolver, MERGE_ROOT_PATH), index);
+        return index;
+    }
+
+    private static void crawl(MergedResourceProvider provider, Resource resource, Map<String, Map<Object, Set<String>>> index) {
+        for (String propertyName : INDEXED_PROPERTIES) {
+            Set<Object> values = new LinkedHashSet<Object>();
+            if (propertyName.equals(MergedResourceConstants.PN_HIDE_PROPERTIES)) {
+                // Not part of merged value maps: taken from the mapped resources
+                for (String mappedPath : ((MergedResource) resource).getMappedResources()) {
+                    addValues(values, ResourceUtil.getValueMap(resource.getResourceResolver().getResource(mappedPath)).get(propertyName));
+                }
+            } else {
+                addValues(values, resource.adaptTo(ValueMap.class).get(propertyName));
+            }
+            for (Object value : values) {
+                Set<String> paths = index.get(propertyName).get(value);
+                if (paths == null) {
+                    paths = new LinkedHashSet<String>();
+                    index.get(propertyName).put(value, paths);
+                }
+                paths.add(resource.getPath());
+            }
+        }
+        Iterator<Resource> children = provider.listChildren(resource);
+        while (children != null && children.hasNext()) {
+            crawl(provider, children.next(), index);
+        }
+    }
+
+    private static void addValues(Set<Object> values, Object value) {
+        if (value instanceof Object[]) {
+            values.addAll(Arrays.asList((Object[]) value));
+        } else if (value != null) {
+            values.add(value);
+        }
+    }
+
+    private static Set<String> getPaths(Map<String, Map<Object, Set<String>>> index, String propertyName, Object value) {
+        Set<String> paths = index.get(propertyName).get(value);
+        return paths != null ? paths : Collections.<String>emptySet();
+    }
+
+    private static Object[] getValues(String propertyName) {
+        if (propertyName.equals("sling:resourceType")) {
+            return LayeredContent.RESOURCE_TYPES;
+        } else if (propertyName.equals("jcr:title")) {
+            return LayeredContent.TITLES;
+        }
+        return LayeredContent.HIDDEN_PROPERTIES;
+    }
+
+    private static Hashtable<String, Object> pathProperties(String path) {
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put(SlingConstants.PROPERTY_PATH, path);
+        return properties;
+    }
+
+    private static MergedResourceIndexManager createIndexManager(LayeredContent content, TestBundleContext bundleContext,
+            String[] indexedProperties) throws Exception {
+        MergedResourceIndexManager manager = new MergedResourceIndexManager();
+        Field field = MergedResourceIndexManager.class.getDeclaredField("resourceResolverFactory");
+        field.setAccessible(true);
+        field.set(manager, new ContentResourceResolverFactory(content));
+
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("merge.root", MERGE_ROOT_PATH);
+        properties.put("merge.index.properties", indexedProperties);
+        invoke(manager, "activate", bundleContext.getBundleContext(), properties);
+        return manager;
+    }
+
+    private static Object getField(Object target, String name) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(target);
+    }
+
+    private static void invoke(Object target, String name, Object... args) throws Exception {
+        for (Method method : target.getClass().getDeclaredMethods()) {
+            if (method.getName().equals(name) && method.getParameterTypes().length == args.length) {
+                method.setAccessible(true);
+                method.invoke(target, args);
+                return;
+            }
+        }
+        throw new NoSuchMethodException(name);
+    }
+
+    /**
+     * Factory of resolvers over the content, which can fail the next logins or
+     * return resolvers without search path
+     */
+    private static class ContentResourceResolverFactory implements ResourceResolverFactory {
+
+        private final LayeredContent content;
+
+        int failingLogins;
+
+        int missingSearchPaths;
+
+        ContentResourceResolverFactory(LayeredContent content) {
+            this.content = content;
+        }
+
+        public ResourceResolver getResourceResolver(Map<String, Object> authenticationInfo) throws LoginException {
+            return getAdministrativeResourceResolver(authenticationInfo);
+        }
+
+        public synchronized ResourceResolver getAdministrativeResourceResolver(Map<String, Object> authenticationInfo) throws LoginException {
+            if (failingLogins > 0) {
+                failingLogins--;
+                throw new LoginException("Login failure");
+            }
+            if (missingSearchPaths > 0) {
+                missingSearchPaths--;
+                return new SnapshotResourceResolver(content) {
+                    @Override
+                    public String[] getSearchPath() {
+                        return null;
+                    }
+                };
+            }
+            return new SnapshotResourceResolver(content);
+        }
+
+    }
+
+    /**
+     * Scheduled executor service only running its tasks when asked to
+     */
+    private static class ManualScheduler implements InvocationHandler {
+
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        private final List<Long> delays = new ArrayList<Long>();
+
+        private boolean shutdown;
+
+        ScheduledExecutorService getExecutor() {
+            return (ScheduledExecutorService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{ScheduledExecutorService.class}, this);
+        }
+
+        boolean hasNext() {
+            return !tasks.isEmpty();
+        }
+
+        /**
+         * Runs the first scheduled task
+         *
+         * @return Delay the task was scheduled with, in milliseconds
+         */
+        long runNext() {
+            assertTrue("No task scheduled", hasNext());
+            long delay = delays.remove(0);
+            tasks.remove(0).run();
+            return delay;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("schedule")) {
+                if (shutdown) {
+                    throw new RejectedExecutionException();
+                }
+                tasks.add((Runnable) args[0]);
+                delays.add(((TimeUnit) args[2]).toMillis((Long) args[1]));
+                return null;
+            } else if (method.getName().equals("shutdownNow")) {
+                shutdown = true;
+                tasks.clear();
+                delays.clear();
+                return Collections.<Runnable>emptyList();
+            }
+            throw new UnsupportedOperationException(method.getName());
+        }
+
+    }
+
+}
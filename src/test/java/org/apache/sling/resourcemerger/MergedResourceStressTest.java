@@ -0,0 +1,664 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import junit.framework.TestCase;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.resourcemerger.api.AsyncMergedResourceLookup;
+import org.apache.sling.resourcemerger.api.MergedResourceIndex;
+import org.apache.sling.resourcemerger.impl.MergedResource;
+import org.apache.sling.resourcemerger.impl.MergedResourceConstants;
+import org.apache.sling.resourcemerger.impl.MergedResourceIndexManager;
+import org.apache.sling.resourcemerger.impl.MergedResourceProvider;
+import org.apache.sling.resourcemerger.impl.MergedResourceProviderFactory;
+
+/**
+ * Randomized differential test of the merge engine against the
+ * {@link ReferenceMerger}, over {@link LayeredContent}.
+ * <p>
+ * The stress test runs readers comparing the lookups of the
+ * {@link MergedResourceProvider}, of the {@link AsyncMergedResourceLookup}
+ * service and of the {@link MergedResourceIndex} service to the reference
+ * while writers keep on changing the layers, then reports throughput and
+ * latency percentiles. Found resources must always be visible and hold the
+ * value in the reader's snapshot; indexed lookups are compared exactly while
+ * the writers are paused and the index has caught up.
+ * <p>
+ * All tests use a fixed seed unless <code>merge.stress.seed</code> is set. The
+ * stress test only runs when <code>merge.stress.duration</code> (in
+ * milliseconds) is set, e.g.
+ * <code>mvn test -Dtest=MergedResourceStressTest -Dmerge.stress.duration=10000</code>,
+ * and can be tuned with <code>merge.stress.readers</code> and
+ * <code>merge.stress.writers</code>.
+ */
+public class MergedResourceStressTest extends TestCase {
+
+    private static final String MERGE_ROOT_PATH = "/merge";
+
+    private static final String[] SEARCH_PATH = {"/apps/", "/custom/", "/libs/"};
+
+    private static final String[] INDEXED_PROPERTIES = {
+            "sling:resourceType", "jcr:title", MergedResourceConstants.PN_HIDE_PROPERTIES
+    };
+
+    /**
+     * Seed used unless <code>merge.stress.seed</code> is set, so that the
+     * default build is reproducible
+     */
+    private static final long DEFAULT_SEED = 20131105L;
+
+    private static final int MAX_REPORTED_MISMATCHES = 10;
+
+    private static final long INDEX_TIMEOUT = 30000;
+
+    private final Queue<String> mismatches = new ConcurrentLinkedQueue<String>();
+
+    /**
+     * Snapshot the index is known to match while the writers are paused
+     */
+    private volatile VerifiedIndex verified;
+
+    public void testDifferentialRandomContent() throws Exception {
+        long seed = Long.getLong("merge.stress.seed", DEFAULT_SEED);
+        Random random = new Random(seed);
+        MergedResourceProvider provider = new MergedResourceProvider(MERGE_ROOT_PATH);
+
+        for (int i = 0; i < 200; i++) {
+            LayeredContent content = new LayeredContent(SEARCH_PATH, random);
+            SnapshotResourceResolver resolver = new SnapshotResourceResolver(content);
+            compareTree(provider, resolver, new ReferenceMerger(resolver.getSnapshot(), SEARCH_PATH), "");
+
+            // Missing resources are never merged
+            compareResource(provider, resolver, new ReferenceMerger(resolver.getSnapshot(), SEARCH_PATH), "/missing");
+        }
+
+        assertNoMismatch(seed);
+    }
+
+    public void testDifferentialIndexUpdates() throws Exception {
+        long seed = Long.getLong("merge.stress.seed", DEFAULT_SEED);
+        Random random = new Random(seed);
+
+        for (int i = 0; i < 20 && mismatches.isEmpty(); i++) {
+            LayeredContent content = new LayeredContent(SEARCH_PATH, random);
+            TestBundleContext bundleContext = new TestBundleContext();
+            MergedResourceIndexManager manager = createIndexManager(content, bundleContext);
+            try {
+                MergedResourceIndex index = bundleContext.getServices(MergedResourceIndex.class).get(0);
+                for (int j = 0; j < 100 && mismatches.isEmpty(); j++) {
+                    content.change(random, bundleContext);
+                    if (j % 5 == 4) {
+                        waitForIndex(index, content);
+                    }
+                }
+            } finally {
+                invoke(manager, "deactivate");
+            }
+        }
+
+        assertNoMismatch(seed);
+    }
+
+    public void testConcurrentStress() throws Exception {
+        // Timed run, only when explicitly asked for
+        if (System.getProperty("merge.stress.duration") == null) {
+            return;
+        }
+        long seed = Long.getLong("merge.stress.seed", DEFAULT_SEED);
+        long duration = Long.getLong("merge.stress.duration");
+        int readers = Integer.getInteger("merge.stress.readers", 8);
+        int writers = Integer.getInteger("merge.stress.writers", 2);
+
+        final LayeredContent content = new LayeredContent(SEARCH_PATH, new Random(seed));
+        final TestBundleContext bundleContext = new TestBundleContext();
+        final MergedResourceProviderFactory factory = createFactory();
+        final MergedResourceIndexManager manager = createIndexManager(content, bundleContext);
+        try {
+            final MergedResourceProvider provider = (MergedResourceProvider) factory.getResourceProvider(null);
+            final MergedResourceIndex index = bundleContext.getServices(MergedResourceIndex.class).get(0);
+            final long deadline = System.currentTimeMillis() + duration;
+            final CountDownLatch done = new CountDownLatch(readers + writers + 1);
+            final ReadWriteLock pause = new ReentrantReadWriteLock();
+            final List<Map<String, Latencies>> latencies = Collections.synchronizedList(new ArrayList<Map<String, Latencies>>());
+            final Queue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+
+            for (int i = 0; i < readers; i++) {
+                final Random random = new Random(seed + i + 1);
+                startThread("reader-" + i, done, errors, new Runnable() {
+                    public void run() {
+                        Map<String, Latencies> threadLatencies = new TreeMap<String, Latencies>();
+                        latencies.add(threadLatencies);
+                        read(provider, factory, index, new SnapshotResourceResolver(content), random, deadline, threadLatencies);
+                    }
+                });
+            }
+            for (int i = 0; i < writers; i++) {
+                final Random random = new Random(seed - i - 1);
+                startThread("writer-" + i, done, errors, new Runnable() {
+                    public void run() {
+                        while (System.currentTimeMillis() < deadline) {
+                            pause.readLock().lock();
+                            try {
+                                content.change(random, bundleContext);
+                            } finally {
+                                pause.readLock().unlock();
+                            }
+                            Thread.yield();
+                        }
+                    }
+                });
+            }
+            startThread("verifier", done, errors, new Runnable() {
+                public void run() {
+                    verify(index, content, pause.writeLock(), deadline);
+                }
+            });
+            done.await();
+
+            if (!errors.isEmpty()) {
+                AssertionError error = new AssertionError("Stress thread failed (seed " + seed + ")");
+                error.initCause(errors.peek());
+                throw error;
+            }
+
+            // Once all changes are applied, the index has to match a crawl of the merged tree
+            waitForIndex(index, content);
+
+            report(seed, duration, readers, writers, latencies);
+            assertNoMismatch(seed);
+        } finally {
+            invoke(manager, "deactivate");
+            invoke(factory, "deactivate");
+        }
+    }
+
+    /**
+     * Periodically pauses the writers until the index has caught up, then
+     * publishes the verified snapshot for a while so that readers seeing it
+     * can check the indexed lookups exactly
+     */
+    private void verify(MergedResourceIndex index, LayeredContent content, Lock pause, long deadline) {
+        try {
+            while (System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+                pause.lock();
+                try {
+                    LayeredContent.Snapshot snapshot = content.getSnapshot();
+                    Map<String, Map<Object, Set<String>>> expectedIndex = waitForIndex(index, snapshot);
+                    if (expectedIndex != null) {
+                        verified = new VerifiedIndex(snapshot, expectedIndex);
+                        Thread.sleep(10);
+                    }
+                } finally {
+                    verified = null;
+                    pause.unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Runs random lookups until the deadline, comparing them to the reference
+     */
+    private void read(MergedResourceProvider provider, AsyncMergedResourceLookup lookup, MergedResourceIndex index,
+                      SnapshotResourceResolver resolver, Random random, long deadline, Map<String, Latencies> latencies) {
+        while (System.currentTimeMillis() < deadline) {
+            resolver.refresh();
+            ReferenceMerger reference = new ReferenceMerger(resolver.getSnapshot(), SEARCH_PATH);
+            String relativePath = randomRelativePath(random);
+            long start = System.nanoTime();
+
+            try {
+                switch (random.nextInt(6)) {
+                    case 0: {
+                        Resource resource = provider.getResource(resolver, MERGE_ROOT_PATH + relativePath);
+                        record(latencies, "getResource", start);
+                        compareResource(relativePath, resource, reference);
+                        break;
+                    }
+                    case 1: {
+                        Resource resource = provider.getResource(resolver, MERGE_ROOT_PATH + relativePath);
+                        List<Resource> children = toList(resource != null ? provider.listChildren(resource) : null);
+                        record(latencies, "listChildren", start);
+                        compareChildren(relativePath, resource, children, reference);
+                        break;
+                    }
+                    case 2: {
+                        List<Future<Resource>> futures = new ArrayList<Future<Resource>>();
+                        List<String> relativePaths = new ArrayList<String>();
+                        for (int i = 0; i < 8; i++) {
+                            relativePaths.add(randomRelativePath(random));
+                            futures.add(lookup.getResourceAsync(resolver.clone(null), MERGE_ROOT_PATH + relativePaths.get(i)));
+                        }
+                        List<Resource> resources = new ArrayList<Resource>();
+                        for (Future<Resource> future : futures) {
+                            resources.add(future.get());
+                        }
+                        record(latencies, "getResourceAsync x8", start);
+                        for (int i = 0; i < resources.size(); i++) {
+                            compareResource(relativePaths.get(i), resources.get(i), reference);
+                        }
+                        break;
+                    }
+                    case 3: {
+                        Resource resource = provider.getResource(resolver, MERGE_ROOT_PATH + relativePath);
+                        List<Resource> children = resource != null ? lookup.listChildrenAsync(resource).get() : null;
+                        record(latencies, "listChildrenAsync", start);
+                        compareChildren(relativePath, resource, children, reference);
+                        break;
+                    }
+                    case 4: {
+                        if (index.isReady()) {
+                            VerifiedIndex verifiedIndex = verified;
+                            String propertyName = INDEXED_PROPERTIES[random.nextInt(INDEXED_PROPERTIES.length)];
+                            Object value = randomValue(propertyName, random);
+                            Set<String> paths = index.findPaths(propertyName, value);
+                            record(latencies, "findPaths", start);
+                            // Only exact if the writers were paused during the whole lookup
+                            if (verifiedIndex != null && verifiedIndex.snapshot == resolver.getSnapshot() && verified == verifiedIndex) {
+                                Set<String> expected = verifiedIndex.getPaths(propertyName, value);
+                                check(paths.equals(expected), "", "paths found for " + propertyName + "=" + value, expected, paths);
+                            }
+                        }
+                        break;
+                    }
+                    default: {
+                        if (index.isReady()) {
+                            VerifiedIndex verifiedIndex = verified;
+                            String propertyName = INDEXED_PROPERTIES[random.nextInt(INDEXED_PROPERTIES.length)];
+                            Object value = randomValue(propertyName, random);
+                            List<Resource> resources = toList(index.findResources(resolver, propertyName, value));
+                            record(latencies, "findResources", start);
+                            compareFoundResources(resources, reference, propertyName, value);
+                            if (verifiedIndex != null && verifiedIndex.snapshot == resolver.getSnapshot() && verified == verifiedIndex) {
+                                Set<String> expected = verifiedIndex.getPaths(propertyName, value);
+                                Set<String> paths = new LinkedHashSet<String>();
+                                for (Resource resource : resources) {
+                                    paths.add(resource.getPath());
+                                }
+                                check(paths.equals(expected), "", "resources found for " + propertyName + "=" + value, expected, paths);
+                            }
+                        }
+                        break;
+                    }
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private void compareTree(MergedResourceProvider provider, ResourceResolver resolver, ReferenceMerger reference, String relativePath) {
+        Resource resource = compareResource(provider, resolver, reference, relativePath);
+        if (resource != null) {
+            List<Resource> children = toList(provider.listChildren(resource));
+            compareChildren(relativePath, resource, children, reference);
+            for (Resource child : children) {
+                compareTree(provider, resolver, reference, relativePath + "/" + child.getName());
+            }
+        }
+    }
+
+    private Resource compareResource(MergedResourceProvider provider, ResourceResolver resolver, ReferenceMerger reference, String relativePath) {
+        Resource resource = provider.getResource(resolver, MERGE_ROOT_PATH + relativePath);
+        compareResource(relativePath, resource, reference);
+        return resource;
+    }
+
+    private void compareResource(String relativePath, Resource resource, ReferenceMerger reference) {
+        List<String> expectedMappedPaths = reference.getMappedPaths(relativePath);
+        if (expectedMappedPaths.isEmpty() || resource == null) {
+            check(expectedMappedPaths.isEmpty() == (resource == null), relativePath, "existence", expectedMappedPaths, resource);
+        } else {
+            compareMergedResource(relativePath, resource, expectedMappedPaths, reference);
+        }
+    }
+
+    private void compareChildren(String relativePath, Resource resource, List<Resource> children, ReferenceMerger reference) {
+        if (resource == null) {
+            return;
+        }
+        LinkedHashMap<String, List<String>> expected = reference.getChildren(relativePath, reference.getMappedPaths(relativePath));
+        List<String> names = new ArrayList<String>();
+        for (Resource child : children) {
+            names.add(child.getName());
+        }
+        if (check(names.equals(new ArrayList<String>(expected.keySet())), relativePath, "children", expected.keySet(), names)) {
+            for (Resource child : children) {
+                compareMergedResource(relativePath + "/" + child.getName(), child, expected.get(child.getName()), reference);
+            }
+        }
+    }
+
+    private void compareMergedResource(String relativePath, Resource resource, List<String> expectedMappedPaths, ReferenceMerger reference) {
+        List<String> mappedPaths = new ArrayList<String>();
+        for (String mappedPath : ((MergedResource) resource).getMappedResources()) {
+            mappedPaths.add(mappedPath);
+        }
+        check(mappedPaths.equals(expectedMappedPaths), relativePath, "mapped resources", expectedMappedPaths, mappedPaths);
+
+        Map<String, Object> expected = comparable(reference.getProperties(expectedMappedPaths));
+        Map<String, Object> actual = comparable(resource.adaptTo(ValueMap.class));
+        check(actual.equals(expected), relativePath, "properties", expected, actual);
+    }
+
+    /**
+     * Checks that the merged resources found through the index, which may be
+     * outdated, are visible and hold the value in the resolver's snapshot
+     */
+    private void compareFoundResources(List<Resource> resources, ReferenceMerger reference, String propertyName, Object value) {
+        Set<String> expected = reference.getIndex(MERGE_ROOT_PATH, Collections.singleton(propertyName)).get(propertyName).get(value);
+        for (Resource resource : resources) {
+            String relativePath = resource.getPath().substring(MERGE_ROOT_PATH.length());
+            if (check(expected != null && expected.contains(resource.getPath()), relativePath, "found for " + propertyName + "=" + value, expected, resource.getPath())) {
+                compareMergedResource(relativePath, resource, reference.getVisibleMappedPaths(relativePath), reference);
+            }
+        }
+    }
+
+    private void waitForIndex(MergedResourceIndex index, LayeredContent content) throws InterruptedException {
+        waitForIndex(index, content.getSnapshot());
+    }
+
+    /**
+     * Waits until the index matches a crawl of the given snapshot, recording
+     * the remaining differences as mismatches on timeout
+     *
+     * @return Expected index, or <code>null</code> on timeout
+     */
+    private Map<String, Map<Object, Set<String>>> waitForIndex(MergedResourceIndex index, LayeredContent.Snapshot snapshot) throws InterruptedException {
+        ReferenceMerger reference = new ReferenceMerger(snapshot, SEARCH_PATH);
+        Map<String, Map<Object, Set<String>>> expectedIndex =
+                reference.getIndex(MERGE_ROOT_PATH, new LinkedHashSet<String>(Arrays.asList(INDEXED_PROPERTIES)));
+        long deadline = System.currentTimeMillis() + INDEX_TIMEOUT;
+        List<String> differences = getIndexDifferences(index, expectedIndex);
+        while (!differences.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+            differences = getIndexDifferences(index, expectedIndex);
+        }
+
+        for (String difference : differences) {
+            mismatches.add("index " + difference);
+        }
+        return differences.isEmpty() ? expectedIndex : null;
+    }
+
+    private List<String> getIndexDifferences(MergedResourceIndex index, Map<String, Map<Object, Set<String>>> expectedIndex) {
+        List<String> differences = new ArrayList<String>();
+        if (!index.isReady()) {
+            differences.add("not ready");
+            return differences;
+        }
+        for (String propertyName : INDEXED_PROPERTIES) {
+            Set<Object> values = new LinkedHashSet<Object>(expectedIndex.get(propertyName).keySet());
+            values.addAll(Arrays.asList(getValues(propertyName)));
+            for (Object value : values) {
+                Set<String> expected = expectedIndex.get(propertyName).get(value);
+                if (expected == null) {
+                    expected = Collections.emptySet();
+                }
+                Set<String> actual = index.findPaths(propertyName, value);
+                if (!actual.equals(expected)) {
+                    differences.add(propertyName + "=" + value + ": expected " + expected + " but was " + actual);
+                }
+            }
+        }
+        return differences;
+    }
+
+    private boolean check(boolean condition, String relativePath, String what, Object expected, Object actual) {
+        if (!condition) {
+            mismatches.add(MERGE_ROOT_PATH + relativePath + " " + what + ": expected " + expected + " but was " + actual);
+        }
+        return condition;
+    }
+
+    private void assertNoMismatch(long seed) {
+        if (!mismatches.isEmpty()) {
+            StringBuilder message = new StringBuilder();
+            message.append(mismatches.size()).append(" mismatch(es) with the reference merge (seed ").append(seed).append(")");
+            Iterator<String> it = mismatches.iterator();
+            for (int i = 0; i < MAX_REPORTED_MISMATCHES && it.hasNext(); i++) {
+                message.append("\n  ").append(it.next());
+            }
+            fail(message.toString());
+        }
+    }
+
+    private void report(long seed, long duration, int readers, int writers, List<Map<String, Latencies>> latencies) {
+        Map<String, Latencies> merged = new TreeMap<String, Latencies>();
+        for (Map<String, Latencies> threadLatencies : latencies) {
+            for (Map.Entry<String, Latencies> entry : threadLatencies.entrySet()) {
+                if (!merged.containsKey(entry.getKey())) {
+                    merged.put(entry.getKey(), new Latencies());
+                }
+                merged.get(entry.getKey()).addAll(entry.getValue());
+            }
+        }
+
+        System.out.println(String.format("Merge stress test: seed %d, %d ms, %d reader(s), %d writer(s)", seed, duration, readers, writers));
+        System.out.println(String.format("%-20s %10s %10s %10s %10s %10s %10s", "operation", "count", "ops/s", "p50 (us)", "p90 (us)", "p99 (us)", "max (us)"));
+        for (Map.Entry<String, Latencies> entry : merged.entrySet()) {
+            Latencies l = entry.getValue();
+            l.sort();
+            System.out.println(String.format("%-20s %10d %10d %10d %10d %10d %10d", entry.getKey(), l.size(), l.size() * 1000L / duration,
+                    l.percentile(50) / 1000, l.percentile(90) / 1000, l.percentile(99) / 1000, l.percentile(100) / 1000));
+        }
+    }
+
+    private MergedResourceProviderFactory createFactory() throws Exception {
+        MergedResourceProviderFactory factory = new MergedResourceProviderFactory();
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("provider.roots", new String[]{MERGE_ROOT_PATH});
+        invoke(factory, "configure", properties);
+        return factory;
+    }
+
+    private MergedResourceIndexManager createIndexManager(final LayeredContent content, TestBundleContext bundleContext) throws Exception {
+        MergedResourceIndexManager manager = new MergedResourceIndexManager();
+        Field field = MergedResourceIndexManager.class.getDeclaredField("resourceResolverFactory");
+        field.setAccessible(true);
+        field.set(manager, new ResourceResolverFactory() {
+            public ResourceResolver getResourceResolver(Map<String, Object> authenticationInfo) {
+                return new SnapshotResourceResolver(content);
+            }
+
+            public ResourceResolver getAdministrativeResourceResolver(Map<String, Object> authenticationInfo) {
+                return new SnapshotResourceResolver(content);
+            }
+        });
+
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("merge.root", MERGE_ROOT_PATH);
+        properties.put("merge.index.properties", INDEXED_PROPERTIES);
+        invoke(manager, "activate", bundleContext.getBundleContext(), properties);
+        return manager;
+    }
+
+    private void invoke(Object target, String name, Object... args) throws Exception {
+        for (Method method : target.getClass().getDeclaredMethods()) {
+            if (method.getName().equals(name) && method.getParameterTypes().length == args.length) {
+                method.setAccessible(true);
+                method.invoke(target, args);
+                return;
+            }
+        }
+        throw new NoSuchMethodException(name);
+    }
+
+    private void startThread(String name, final CountDownLatch done, final Queue<Throwable> errors, final Runnable runnable) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    runnable.run();
+                } catch (Throwable t) {
+                    errors.add(t);
+                } finally {
+                    done.countDown();
+                }
+            }
+        }, "MergedResourceStressTest-" + name);
+        thread.start();
+    }
+
+    private static void record(Map<String, Latencies> latencies, String operation, long start) {
+        long elapsed = System.nanoTime() - start;
+        Latencies l = latencies.get(operation);
+        if (l == null) {
+            l = new Latencies();
+            latencies.put(operation, l);
+        }
+        l.add(elapsed);
+    }
+
+    private static String randomRelativePath(Random random) {
+        StringBuilder path = new StringBuilder();
+        int depth = random.nextInt(4);
+        for (int i = 0; i < depth; i++) {
+            path.append("/").append(LayeredContent.NAMES[random.nextInt(LayeredContent.NAMES.length)]);
+        }
+        return path.toString();
+    }
+
+    private static Object randomValue(String propertyName, Random random) {
+        Object[] values = getValues(propertyName);
+        return values[random.nextInt(values.length)];
+    }
+
+    private static Object[] getValues(String propertyName) {
+        if (propertyName.equals("sling:resourceType")) {
+            return LayeredContent.RESOURCE_TYPES;
+        } else if (propertyName.equals("jcr:title")) {
+            return LayeredContent.TITLES;
+        }
+        return LayeredContent.HIDDEN_PROPERTIES;
+    }
+
+    private static List<Resource> toList(Iterator<Resource> it) {
+        List<Resource> list = new ArrayList<Resource>();
+        while (it != null && it.hasNext()) {
+            list.add(it.next());
+        }
+        return list;
+    }
+
+    /**
+     * Copies properties so that array values can be compared with equals
+     */
+    private static Map<String, Object> comparable(Map<String, Object> properties) {
+        Map<String, Object> result = new HashMap<String, Object>();
+        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            Object value = entry.getValue();
+            result.put(entry.getKey(), value instanceof Object[] ? Arrays.asList((Object[]) value) : value);
+        }
+        return result;
+    }
+
+    /**
+     * Index expected for a snapshot
+     */
+    private static class VerifiedIndex {
+
+        final LayeredContent.Snapshot snapshot;
+
+        final Map<String, Map<Object, Set<String>>> index;
+
+        VerifiedIndex(LayeredContent.Snapshot snapshot, Map<String, Map<Object, Set<String>>> index) {
+            this.snapshot = snapshot;
+            this.index = index;
+        }
+
+        Set<String> getPaths(String propertyName, Object value) {
+            Set<String> paths = index.get(propertyName).get(value);
+            return paths != null ? paths : Collections.<String>emptySet();
+        }
+
+    }
+
+    /**
+     * Growable list of latencies, in nanoseconds
+     */
+    private static class Latencies {
+
+        private long[] values = new long[1024];
+
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                long[] newValues = new long[size * 2];
+                System.arraycopy(values, 0, newValues, 0, size);
+                values = newValues;
+            }
+            values[size++] = value;
+        }
+
+        void addAll(Latencies other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.values[i]);
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        void sort() {
+            Arrays.sort(values, 0, size);
+        }
+
+        long percentile(int percentile) {
+            if (size == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100.0 * size) - 1;
+            return values[Math.max(index, 0)];
+        }
+
+    }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.sling.resourcemerger.impl.MergedResourceConstants;
+
+/**
+ * Straightforward model of the merge semantics, working directly on a
+ * {@link LayeredContent.Snapshot} without going through the Sling API. It is
+ * the reference the merge engine is compared to.
+ * <ul>
+ * <li>Layers are merged from the lowest to the highest search path
+ * priority.</li>
+ * <li>A layer hides the children listed in <code>sling:hideChildren</code>
+ * (all of them for <code>*</code>) before adding its own children.</li>
+ * <li>A child having <code>sling:hideResource = true</code> removes the
+ * merged child of the same name.</li>
+ * <li>A child having <code>sling:orderBefore</code> is moved right before the
+ * merged sibling of that name, if it exists. Other children are appended
+ * when first seen and keep their position afterwards.</li>
+ * <li>Properties of a layer override the previous ones and remove the ones
+ * listed in <code>sling:hideProperties</code> (all of them for
+ * <code>*</code>). The first non-empty layer is taken as is. Merge
+ * properties are never part of the result.</li>
+ * </ul>
+ */
+public class ReferenceMerger {
+
+    private static final Set<String> MERGE_PROPERTIES = new HashSet<String>(Arrays.asList(
+            MergedResourceConstants.PN_HIDE_PROPERTIES,
+            MergedResourceConstants.PN_HIDE_RESOURCE,
+            MergedResourceConstants.PN_HIDE_CHILDREN,
+            MergedResourceConstants.PN_ORDER_BEFORE));
+
+    private final LayeredContent.Snapshot snapshot;
+
+    private final String[] searchPath;
+
+    public ReferenceMerger(LayeredContent.Snapshot snapshot, String[] searchPath) {
+        this.snapshot = snapshot;
+        this.searchPath = searchPath;
+    }
+
+    /**
+     * @param relativePath Path relative to the merge root, "" for the root
+     * @return Paths of the layers' resources, lowest priority first, empty if
+     *         the merged resource does not exist
+     */
+    public List<String> getMappedPaths(String relativePath) {
+        List<String> mappedPaths = new ArrayList<String>();
+        for (int i = searchPath.length - 1; i >= 0; i--) {
+            String path = LayeredContent.removeTrailingSlash(searchPath[i]) + relativePath;
+            if (snapshot.getNode(path) != null) {
+                mappedPaths.add(path);
+            }
+        }
+        return mappedPaths;
+    }
+
+    /**
+     * Gets the mapped paths of a merged resource as found when browsing the
+     * merged tree from its root, through {@link #getChildren(String, List)}.
+     *
+     * @param relativePath Path relative to the merge root, "" for the root
+     * @return Paths of the layers' resources, lowest priority first, or
+     *         <code>null</code> if the merged resource is not visible
+     */
+    public List<String> getVisibleMappedPaths(String relativePath) {
+        List<String> mappedPaths = getMappedPaths("");
+        String path = "";
+        for (String name : relativePath.split("/")) {
+            if (mappedPaths == null || mappedPaths.isEmpty()) {
+                return null;
+            }
+            if (name.length() > 0) {
+                mappedPaths = getChildren(path, mappedPaths).get(name);
+                path += "/" + name;
+            }
+        }
+        return mappedPaths != null && !mappedPaths.isEmpty() ? mappedPaths : null;
+    }
+
+    /**
+     * @param relativePath Relative path of the parent
+     * @param mappedPaths  Mapped paths of the parent
+     * @return Ordered children, by name, with their own mapped paths
+     */
+    public LinkedHashMap<String, List<String>> getChildren(String relativePath, List<String> mappedPaths) {
+        List<String> names = new ArrayList<String>();
+        Map<String, List<String>> childMappedPaths = new HashMap<String, List<String>>();
+
+        for (String mappedPath : mappedPaths) {
+            LayeredContent.Node node = snapshot.getNode(mappedPath);
+            if (node == null) {
+                continue;
+            }
+
+            List<String> hiddenChildren = toList(node.properties.get(MergedResourceConstants.PN_HIDE_CHILDREN));
+            if (hiddenChildren.contains("*")) {
+                names.clear();
+            } else {
+                names.removeAll(hiddenChildren);
+            }
+
+            for (String name : node.children) {
+                String childPath = mappedPath + "/" + name;
+                Map<String, Object> childProperties = snapshot.getNode(childPath).properties;
+                if (Boolean.TRUE.equals(childProperties.get(MergedResourceConstants.PN_HIDE_RESOURCE))) {
+                    names.remove(name);
+                    continue;
+                }
+
+                if (!names.contains(name)) {
+                    names.add(name);
+                    childMappedPaths.put(name, new ArrayList<String>());
+                }
+                childMappedPaths.get(name).add(childPath);
+
+                Object orderBefore = childProperties.get(MergedResourceConstants.PN_ORDER_BEFORE);
+                if (orderBefore != null && !orderBefore.equals(name) && names.contains(orderBefore)) {
+                    names.remove(name);
+                    names.add(names.indexOf(orderBefore), name);
+                }
+            }
+        }
+
+        LinkedHashMap<String, List<String>> children = new LinkedHashMap<String, List<String>>();
+        for (String name : names) {
+            children.put(name, childMappedPaths.get(name));
+        }
+        return children;
+    }
+
+    /**
+     * @param mappedPaths Mapped paths of a merged resource
+     * @return Merged properties
+     */
+    public Map<String, Object> getProperties(List<String> mappedPaths) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        for (String mappedPath : mappedPaths) {
+            LayeredContent.Node node = snapshot.getNode(mappedPath);
+            Map<String, Object> layerProperties = node != null ? node.properties : Collections.<String, Object>emptyMap();
+            if (properties.isEmpty()) {
+                properties.putAll(layerProperties);
+            } else {
+                for (Map.Entry<String, Object> entry : layerProperties.entrySet()) {
+                    if (!MERGE_PROPERTIES.contains(entry.getKey())) {
+                        properties.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                List<String> hiddenProperties = toList(layerProperties.get(MergedResourceConstants.PN_HIDE_PROPERTIES));
+                if (hiddenProperties.contains("*")) {
+                    properties.clear();
+                } else {
+                    properties.keySet().removeAll(hiddenProperties);
+                }
+            }
+            properties.keySet().removeAll(MERGE_PROPERTIES);
+        }
+        return properties;
+    }
+
+    /**
+     * Crawls the merged tree to find the merged resources holding each value
+     * of the given properties. Merge properties are read from every mapped
+     * resource, except <code>sling:hideResource</code> which never matches
+     * since the resources holding it are not merged.
+     *
+     * @param mergeRootPath Merge root path
+     * @param propertyNames Property names
+     * @return Property name to value to merged paths
+     */
+    public Map<String, Map<Object, Set<String>>> getIndex(String mergeRootPath, Set<String> propertyNames) {
+        Map<String, Map<Object, Set<String>>> index = new HashMap<String, Map<Object, Set<String>>>();
+        for (String propertyName : propertyNames) {
+            index.put(propertyName, new HashMap<Object, Set<String>>());
+        }
+        List<String> rootMappedPaths = getMappedPaths("");
+        if (!rootMappedPaths.isEmpty()) {
+            collect(mergeRootPath, "", rootMappedPaths, index);
+        }
+        return index;
+    }
+
+    private void collect(String mergeRootPath, String relativePath, List<String> mappedPaths, Map<String, Map<Object, Set<String>>> index) {
+        Map<String, Object> properties = getProperties(mappedPaths);
+        for (Map.Entry<String, Map<Object, Set<String>>> entry : index.entrySet()) {
+            List<Object> values = new ArrayList<Object>();
+            if (MERGE_PROPERTIES.contains(entry.getKey()) && !entry.getKey().equals(MergedResourceConstants.PN_HIDE_RESOURCE)) {
+                for (String mappedPath : mappedPaths) {
+                    values.addAll(toObjectList(snapshot.getNode(mappedPath).properties.get(entry.getKey())));
+                }
+            } else {
+                values.addAll(toObjectList(properties.get(entry.getKey())));
+            }
+            for (Object value : values) {
+                Set<String> paths = entry.getValue().get(value);
+                if (paths == null) {
+                    paths = new LinkedHashSet<String>();
+                    entry.getValue().put(value, paths);
+                }
+                paths.add(mergeRootPath + relativePath);
+            }
+        }
+
+        Iterator<Map.Entry<String, List<String>>> children = getChildren(relativePath, mappedPaths).entrySet().iterator();
+        while (children.hasNext()) {
+            Map.Entry<String, List<String>> child = children.next();
+            collect(mergeRootPath, relativePath + "/" + child.getKey(), child.getValue(), index);
+        }
+    }
+
+    private static List<String> toList(Object value) {
+        List<String> list = new ArrayList<String>();
+        for (Object item : toObjectList(value)) {
+            list.add(item.toString());
+        }
+        return list;
+    }
+
+    private static List<Object> toObjectList(Object value) {
+        if (value instanceof Object[]) {
+            return Arrays.asList((Object[]) value);
+        }
+        return value != null ? Collections.singletonList(value) : Collections.emptyList();
+    }
+
+}
@@ -0,0 +1,298 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.sling.api.resource.AbstractResource;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceMetadata;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+
+/**
+ * Read-only {@link ResourceResolver} over a {@link LayeredContent.Snapshot}.
+ * Like a JCR session, it keeps on seeing the same snapshot until it is
+ * refreshed, and it may not be used by several threads at once: concurrent
+ * accesses fail with an {@link IllegalStateException}.
+ */
+public class SnapshotResourceResolver implements ResourceResolver {
+
+    private final LayeredContent content;
+
+    private volatile LayeredContent.Snapshot snapshot;
+
+    /**
+     * Thread currently using this resolver
+     */
+    private final AtomicReference<Thread> owner = new AtomicReference<Thread>();
+
+    /**
+     * Nesting level of the calls of the owner thread
+     */
+    private int depth;
+
+    public SnapshotResourceResolver(LayeredContent content) {
+        this(content, content.getSnapshot());
+    }
+
+    private SnapshotResourceResolver(LayeredContent content, LayeredContent.Snapshot snapshot) {
+        this.content = content;
+        this.snapshot = snapshot;
+    }
+
+    public LayeredContent.Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public Resource getResource(String path) {
+        enter();
+        try {
+            String normalizedPath = ResourceUtil.normalize(path);
+            if (normalizedPath == null) {
+                return null;
+            }
+            LayeredContent.Snapshot current = snapshot;
+            LayeredContent.Node node = current.getNode(normalizedPath);
+            return node != null ? new SnapshotResource(this, current, normalizedPath, node) : null;
+        } finally {
+            exit();
+        }
+    }
+
+    public Resource getResource(Resource base, String path) {
+        return getResource(path.startsWith("/") ? path : base.getPath() + "/" + path);
+    }
+
+    public String[] getSearchPath() {
+        enter();
+        try {
+            return content.getSearchPath();
+        } finally {
+            exit();
+        }
+    }
+
+    public Iterator<Resource> listChildren(Resource parent) {
+        enter();
+        try {
+            List<Resource> children = new ArrayList<Resource>();
+            if (parent instanceof SnapshotResource) {
+                SnapshotResource resource = (SnapshotResource) parent;
+                for (String name : resource.node.children) {
+                    String path = resource.getPath() + "/" + name;
+                    children.add(new SnapshotResource(this, resource.snapshot, path, resource.snapshot.getNode(path)));
+                }
+            }
+            return children.iterator();
+        } finally {
+            exit();
+        }
+    }
+
+    public Iterable<Resource> getChildren(final Resource parent) {
+        return new Iterable<Resource>() {
+            public Iterator<Resource> iterator() {
+                return listChildren(parent);
+            }
+        };
+    }
+
+    public void refresh() {
+        enter();
+        try {
+            snapshot = content.getSnapshot();
+        } finally {
+            exit();
+        }
+    }
+
+    public boolean isLive() {
+        return true;
+    }
+
+    public void close() {
+        // Nothing to release
+    }
+
+    public String getUserID() {
+        return null;
+    }
+
+    public Iterator<String> getAttributeNames() {
+        return Collections.<String>emptyList().iterator();
+    }
+
+    public Object getAttribute(String name) {
+        return null;
+    }
+
+    public <AdapterType> AdapterType adaptTo(Class<AdapterType> type) {
+        return null;
+    }
+
+    public Resource resolve(HttpServletRequest request, String absPath) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Resource resolve(String absPath) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Resource resolve(HttpServletRequest request) {
+        throw new UnsupportedOperationException();
+    }
+
+    public String map(String resourcePath) {
+        throw new UnsupportedOperationException();
+    }
+
+    public String map(HttpServletRequest request, String resourcePath) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Iterator<Resource> findResources(String query, String language) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Iterator<Map<String, Object>> queryResources(String query, String language) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Creates a new resolver seeing the same snapshot
+     */
+    public SnapshotResourceResolver clone(Map<String, Object> authenticationInfo) {
+        return new SnapshotResourceResolver(content, snapshot);
+    }
+
+    public void delete(Resource resource) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Resource create(Resource parent, String name, Map<String, Object> properties) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void revert() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void commit() {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean hasChanges() {
+        return false;
+    }
+
+    public String getParentResourceType(Resource resource) {
+        return null;
+    }
+
+    public String getParentResourceType(String resourceType) {
+        return null;
+    }
+
+    public boolean isResourceType(Resource resource, String resourceType) {
+        return resourceType != null && resourceType.equals(resource.getResourceType());
+    }
+
+    private void enter() {
+        Thread current = Thread.currentThread();
+        if (owner.get() != current && !owner.compareAndSet(null, current)) {
+            throw new IllegalStateException("Resource resolver used by " + current.getName() + " while in use by " + owner.get());
+        }
+        depth++;
+    }
+
+    private void exit() {
+        if (--depth == 0) {
+            owner.set(null);
+        }
+    }
+
+    /**
+     * Resource bound to the snapshot it was read from
+     */
+    private static class SnapshotResource extends AbstractResource {
+
+        private final SnapshotResourceResolver resolver;
+
+        private final LayeredContent.Snapshot snapshot;
+
+        private final String path;
+
+        private final LayeredContent.Node node;
+
+        SnapshotResource(SnapshotResourceResolver resolver, LayeredContent.Snapshot snapshot, String path, LayeredContent.Node node) {
+            this.resolver = resolver;
+            this.snapshot = snapshot;
+            this.path = path;
+            this.node = node;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getResourceType() {
+            Object resourceType = node.properties.get("sling:resourceType");
+            return resourceType instanceof String ? (String) resourceType : "nt:unstructured";
+        }
+
+        public String getResourceSuperType() {
+            return null;
+        }
+
+        public ResourceMetadata getResourceMetadata() {
+            ResourceMetadata metadata = new ResourceMetadata();
+            metadata.setResolutionPath(path);
+            return metadata;
+        }
+
+        public ResourceResolver getResourceResolver() {
+            return resolver;
+        }
+
+        @SuppressWarnings("unchecked")
+        public <AdapterType> AdapterType adaptTo(Class<AdapterType> type) {
+            resolver.enter();
+            try {
+                if (type == ValueMap.class) {
+                    return (AdapterType) new ValueMapDecorator(node.properties);
+                }
+                return super.adaptTo(type);
+            } finally {
+                resolver.exit();
+            }
+        }
+
+    }
+
+}
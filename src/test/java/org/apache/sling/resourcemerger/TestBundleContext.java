@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.resourcemerger;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.sling.api.SlingConstants;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+
+/**
+ * Minimal bundle context keeping the services registered by a component.
+ * Registered event handlers receive the resource events of the
+ * {@link LayeredContent} like from the event admin.
+ */
+public class TestBundleContext implements InvocationHandler, LayeredContent.ChangeListener {
+
+    private final List<Registration> registrations = new CopyOnWriteArrayList<Registration>();
+
+    public BundleContext getBundleContext() {
+        return (BundleContext) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{BundleContext.class}, this);
+    }
+
+    /**
+     * Gets the services currently registered with the given interface
+     *
+     * @param type Service interface
+     * @return Services, in registration order
+     */
+    public <T> List<T> getServices(Class<T> type) {
+        List<T> services = new ArrayList<T>();
+        for (Registration registration : registrations) {
+            if (registration.classNames.contains(type.getName())) {
+                services.add(type.cast(registration.service));
+            }
+        }
+        return services;
+    }
+
+    /**
+     * Gets the event filter of the currently registered event handler
+     *
+     * @return Filter, or <code>null</code> if the handler has none
+     */
+    public Filter getEventFilter() throws Exception {
+        for (Registration registration : registrations) {
+            if (registration.classNames.contains(EventHandler.class.getName())) {
+                String filter = (String) registration.properties.get(EventConstants.EVENT_FILTER);
+                return filter != null ? FrameworkUtil.createFilter(filter) : null;
+            }
+        }
+        throw new IllegalStateException("No event handler registered");
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (!method.getName().equals("registerService")) {
+            throw new UnsupportedOperationException(method.getName());
+        }
+        List<String> classNames = args[0] instanceof String[] ? Arrays.asList((String[]) args[0]) : Arrays.asList((String) args[0]);
+        final Registration registration = new Registration(classNames, args[1], (Dictionary<?, ?>) args[2]);
+        registrations.add(registration);
+        return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ServiceRegistration.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (!method.getName().equals("unregister")) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                registrations.remove(registration);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Sends a resource event to the matching event handlers
+     */
+    public void changed(String topic, String path) {
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put(SlingConstants.PROPERTY_PATH, path);
+        Event event = new Event(topic, properties);
+        for (Registration registration : registrations) {
+            if (registration.classNames.contains(EventHandler.class.getName()) && registration.matches(event)) {
+                ((EventHandler) registration.service).handleEvent(event);
+            }
+        }
+    }
+
+    private static class Registration {
+
+        final List<String> classNames;
+
+        final Object service;
+
+        final Dictionary<?, ?> properties;
+
+        Registration(List<String> classNames, Object service, Dictionary<?, ?> properties) {
+            this.classNames = classNames;
+            this.service = service;
+            this.properties = properties != null ? properties : new Hashtable<String, Object>();
+        }
+
+        boolean matches(Event event) {
+            Object topics = properties.get(EventConstants.EVENT_TOPIC);
+            if (topics == null || !Arrays.asList(topics instanceof String[] ? (String[]) topics : new String[]{(String) topics}).contains(event.getTopic())) {
+                return false;
+            }
+            String filter = (String) properties.get(EventConstants.EVENT_FILTER);
+            try {
+                return filter == null || event.matches(FrameworkUtil.createFilter(filter));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+    }
+
+}